@@ -10,15 +10,31 @@ package cp2022.base;
 
 public abstract class Workplace {
     
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+    
     private final WorkplaceId id;
+    private final int capacity;
     
     protected Workplace(WorkplaceId id) {
+        this(id, 1);
+    }
+    
+    // capacity: how many workers may use the workplace at once, UNLIMITED for shared/exclusive kinds
+    protected Workplace(WorkplaceId id, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
         this.id = id;
+        this.capacity = capacity;
     }
     
     public final WorkplaceId getId() {
         return this.id;
     }
     
+    public final int getCapacity() {
+        return this.capacity;
+    }
+    
     public abstract void use();
 }
@@ -0,0 +1,140 @@
+package cp2022.demo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cp2022.base.Workplace;
+import cp2022.base.WorkplaceId;
+import cp2022.solution.OrderlyWorkshop;
+import cp2022.solution.WorkshopConfig;
+
+/*
+ * Stress check of acquire/release mixed with enter/switchTo/leave. Every third
+ * worker acquires two workplaces, then a third one, releases the third and
+ * leaves; the others enter, switch a few times and leave. Each workplace
+ * counts its users, so more of them than its capacity is caught in use().
+ * Exits with status 1 on a violation, an exception, or if the workers do not
+ * finish within the time limit.
+ *
+ * Usage: AcquireStressCheck [workplaces] [workers] [rounds] [capacity] [time limit in s]
+ * (defaults: 8 workplaces, 16 workers, 300 rounds, capacity 1, 60 s).
+ */
+public class AcquireStressCheck {
+
+    private static class CheckWorkplaceId extends WorkplaceId {
+        private final int id;
+        public CheckWorkplaceId(int id) {
+            this.id = id;
+        }
+        @Override
+        public int compareTo(WorkplaceId other) {
+            return Integer.compare(this.id, ((CheckWorkplaceId)other).id);
+        }
+        @Override
+        public String toString() {
+            return "w" + this.id;
+        }
+    }
+
+    private static class CheckWorkplace extends Workplace {
+        private final AtomicInteger users = new AtomicInteger();
+        private final ConcurrentLinkedQueue<String> violations;
+        public CheckWorkplace(CheckWorkplaceId id, int capacity, ConcurrentLinkedQueue<String> violations) {
+            super(id, capacity);
+            this.violations = violations;
+        }
+        @Override
+        public void use() {
+            int now = users.incrementAndGet();
+            if (now > getCapacity()) {
+                violations.add(String.format("%d users in %s of capacity %d", now, getId(), getCapacity()));
+            }
+            Thread.yield();
+            users.decrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        int capacity = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        long limit = args.length > 4 ? Long.parseLong(args[4]) : 60;
+        if (count < 3) {
+            throw new IllegalArgumentException("holders need at least three workplaces");
+        }
+
+        var violations = new ConcurrentLinkedQueue<String>();
+        List<CheckWorkplaceId> ids = new ArrayList<>(count);
+        List<Workplace> workplaces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var id = new CheckWorkplaceId(i);
+            ids.add(id);
+            workplaces.add(new CheckWorkplace(id, capacity, violations));
+        }
+        var workshop = new OrderlyWorkshop(workplaces, new WorkshopConfig().setLogging(false));
+
+        var threads = new ArrayList<Thread>(workers);
+        for (int w = 0; w < workers; w++) {
+            var random = new Random(w);
+            boolean holder = w % 3 == 0;
+            var thread = new Thread(() -> {
+                try {
+                    for (int r = 0; r < rounds; r++) {
+                        if (holder) {
+                            hold(workshop, ids, random);
+                        } else {
+                            workshop.enter(ids.get(random.nextInt(count))).use();
+                            for (int s = random.nextInt(3); s > 0; s--) {
+                                workshop.switchTo(ids.get(random.nextInt(count))).use();
+                            }
+                            workshop.leave();
+                        }
+                    }
+                } catch (RuntimeException | Error e) {
+                    violations.add(Thread.currentThread().getName() + ": " + e);
+                }
+            });
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(limit);
+        for (var thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (thread.isAlive()) {
+                violations.add("workers did not finish within " + limit + " s");
+                break;
+            }
+        }
+
+        for (var violation : violations) {
+            System.out.println(violation);
+        }
+        System.out.printf("%d workplaces of capacity %d, %d workers, %d rounds: %s%n",
+                count, capacity, workers, rounds, violations.isEmpty() ? "ok" : "FAILED");
+        System.exit(violations.isEmpty() ? 0 : 1);
+    }
+
+    private static void hold(OrderlyWorkshop workshop, List<CheckWorkplaceId> ids, Random random) {
+        var picked = new ArrayList<WorkplaceId>(ids);
+        Collections.shuffle(picked, random);
+        var pair = picked.subList(0, 2);
+        var extra = picked.subList(2, 3);
+
+        for (var workplace : workshop.acquire(pair)) {
+            workplace.use();
+        }
+        for (var workplace : workshop.acquire(extra)) {
+            workplace.use();
+        }
+        workshop.release(extra);
+        workshop.leave();
+    }
+}
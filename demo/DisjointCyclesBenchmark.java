@@ -0,0 +1,114 @@
+package cp2022.demo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import cp2022.base.Workplace;
+import cp2022.base.WorkplaceId;
+import cp2022.base.Workshop;
+import cp2022.solution.WorkshopConfig;
+import cp2022.solution.WorkshopFactory;
+
+/*
+ * Many independent groups of 2 or 3 workers, each rotating around its own
+ * workplaces: in every round each member switches to the next workplace of the
+ * group, so the group closes a cycle per round and no two groups ever share one.
+ *
+ * Usage: DisjointCyclesBenchmark [groups] [rounds] [use time in us]
+ * (defaults: 64 groups, 200 rounds, 0 us); pick the engine with -Dcp2022.engine.
+ */
+public class DisjointCyclesBenchmark {
+
+    private static class BenchmarkWorkplaceId extends WorkplaceId {
+        private final int id;
+        public BenchmarkWorkplaceId(int id) {
+            this.id = id;
+        }
+        @Override
+        public int compareTo(WorkplaceId other) {
+            return Integer.compare(this.id, ((BenchmarkWorkplaceId)other).id);
+        }
+        @Override
+        public String toString() {
+            return "w" + this.id;
+        }
+    }
+
+    private static class BenchmarkWorkplace extends Workplace {
+        private final long useTimeInNs;
+        public BenchmarkWorkplace(BenchmarkWorkplaceId id, long useTimeInNs) {
+            super(id);
+            this.useTimeInNs = useTimeInNs;
+        }
+        @Override
+        public void use() {
+            long until = System.nanoTime() + this.useTimeInNs;
+            while (System.nanoTime() < until) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int groups = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long useTimeInNs = (args.length > 2 ? Long.parseLong(args[2]) : 0) * 1000;
+
+        List<List<BenchmarkWorkplaceId>> cycles = new ArrayList<>(groups);
+        Collection<Workplace> workplaces = new ArrayList<>();
+        int members = 0;
+        for (int g = 0; g < groups; g++) {
+            // alternate 2- and 3-cycles
+            int size = g % 2 == 0 ? 2 : 3;
+            List<BenchmarkWorkplaceId> ids = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                var id = new BenchmarkWorkplaceId(workplaces.size());
+                ids.add(id);
+                workplaces.add(new BenchmarkWorkplace(id, useTimeInNs));
+            }
+            cycles.add(ids);
+            members += size;
+        }
+
+        var config = WorkshopConfig.fromSystemProperties().setLogging(Boolean.getBoolean("cp2022.log"));
+        Workshop workshop = WorkshopFactory.newWorkshop(workplaces, config);
+
+        var entered = new CountDownLatch(members);
+        var go = new CountDownLatch(1);
+        var done = new CountDownLatch(members);
+        for (var ids : cycles) {
+            for (int i = 0; i < ids.size(); i++) {
+                int first = i;
+                new Thread(() -> {
+                    try {
+                        workshop.enter(ids.get(first)).use();
+                        entered.countDown();
+                        go.await();
+                        for (int r = 1; r <= rounds; r++) {
+                            workshop.switchTo(ids.get((first + r) % ids.size())).use();
+                        }
+                        workshop.leave();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException("panic: unexpected thread interruption");
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+        }
+
+        entered.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long switches = (long) members * rounds;
+        System.out.printf("%s: %d groups (%d workers), %d rounds, %.3f s, %.0f switches/s, %.0f cycles/s%n",
+                workshop.getClass().getSimpleName(), groups, members, rounds, seconds,
+                switches / seconds, (double) groups * rounds / seconds);
+    }
+
+}
@@ -0,0 +1,207 @@
+package cp2022.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cp2022.base.Workplace;
+import cp2022.base.WorkplaceId;
+import cp2022.base.Workshop;
+import cp2022.solution.DispatcherWorkshop;
+import cp2022.solution.WorkshopConfig;
+import cp2022.solution.WorkshopFactory;
+
+/*
+ * Check of the workshop engines built by WorkshopFactory. On each engine workers
+ * enter, switch a few times and leave; each workplace counts its users, so two
+ * of them at once is caught in use(). Then the dispatcher engine is closed with
+ * a worker waiting, which has to fail, as has any call after close(). Finally
+ * auto mode must not pick the dispatcher engine for capacities above 1, leases
+ * or a journal. Exits with status 1 on a violation, an exception, or if the
+ * workers do not finish within the time limit.
+ *
+ * Usage: EngineCheck [workplaces] [workers] [rounds] [time limit in s]
+ * (defaults: 8 workplaces, 16 workers, 300 rounds, 60 s).
+ */
+public class EngineCheck {
+
+    private static class CheckWorkplaceId extends WorkplaceId {
+        private final int id;
+        public CheckWorkplaceId(int id) {
+            this.id = id;
+        }
+        @Override
+        public int compareTo(WorkplaceId other) {
+            return Integer.compare(this.id, ((CheckWorkplaceId)other).id);
+        }
+        @Override
+        public String toString() {
+            return "w" + this.id;
+        }
+    }
+
+    private static class CheckWorkplace extends Workplace {
+        private final AtomicInteger users = new AtomicInteger();
+        private final ConcurrentLinkedQueue<String> violations;
+        public CheckWorkplace(CheckWorkplaceId id, int capacity, ConcurrentLinkedQueue<String> violations) {
+            super(id, capacity);
+            this.violations = violations;
+        }
+        @Override
+        public void use() {
+            int now = users.incrementAndGet();
+            if (now > getCapacity()) {
+                violations.add(String.format("%d users in %s of capacity %d", now, getId(), getCapacity()));
+            }
+            Thread.yield();
+            users.decrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        long limit = args.length > 3 ? Long.parseLong(args[3]) : 60;
+
+        var violations = new ConcurrentLinkedQueue<String>();
+        List<CheckWorkplaceId> ids = new ArrayList<>(count);
+        List<Workplace> workplaces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var id = new CheckWorkplaceId(i);
+            ids.add(id);
+            workplaces.add(new CheckWorkplace(id, 1, violations));
+        }
+
+        for (var engine : WorkshopFactory.getEngines()) {
+            var workshop = WorkshopFactory.newWorkshop(workplaces, new WorkshopConfig().setEngine(engine).setLogging(false));
+            long start = System.nanoTime();
+            if (churn(workshop, ids, workers, rounds, limit, violations)) {
+                System.out.printf("%s: %d workers, %d rounds in %.1f ms%n",
+                        engine, workers, rounds, (System.nanoTime() - start) / 1e6);
+                if (workshop instanceof AutoCloseable closeable) {
+                    try {
+                        closeable.close();
+                    } catch (Exception e) {
+                        violations.add(engine + ": close() failed: " + e);
+                    }
+                }
+            }
+        }
+
+        checkClose(ids, workplaces, violations);
+        checkAuto(violations);
+
+        for (var violation : violations) {
+            System.out.println(violation);
+        }
+        System.out.printf("%d workplaces, %d workers, %d rounds: %s%n",
+                count, workers, rounds, violations.isEmpty() ? "ok" : "FAILED");
+        System.exit(violations.isEmpty() ? 0 : 1);
+    }
+
+    // false if the workers did not finish in time
+    private static boolean churn(Workshop workshop, List<CheckWorkplaceId> ids, int workers, int rounds, long limit,
+                                 ConcurrentLinkedQueue<String> violations) throws InterruptedException {
+        var threads = new ArrayList<Thread>(workers);
+        for (int w = 0; w < workers; w++) {
+            var random = new Random(w);
+            var thread = new Thread(() -> {
+                try {
+                    for (int r = 0; r < rounds; r++) {
+                        workshop.enter(ids.get(random.nextInt(ids.size()))).use();
+                        for (int s = random.nextInt(4); s > 0; s--) {
+                            workshop.switchTo(ids.get(random.nextInt(ids.size()))).use();
+                        }
+                        workshop.leave();
+                    }
+                } catch (RuntimeException | Error e) {
+                    violations.add(Thread.currentThread().getName() + ": " + e);
+                }
+            });
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(limit);
+        for (var thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (thread.isAlive()) {
+                violations.add(workshop.getClass().getSimpleName() + ": workers did not finish within " + limit + " s");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkClose(List<CheckWorkplaceId> ids, List<Workplace> workplaces,
+                                   ConcurrentLinkedQueue<String> violations) throws InterruptedException {
+        var workshop = new DispatcherWorkshop(workplaces, new WorkshopConfig().setLogging(false));
+        var entered = new CountDownLatch(1);
+        var holder = new Thread(() -> {
+            workshop.enter(ids.get(0)).use();
+            entered.countDown();
+        });
+        holder.start();
+        entered.await();
+
+        var failed = new AtomicInteger();
+        var waiter = new Thread(() -> {
+            try {
+                workshop.enter(ids.get(0));
+                violations.add("close: a waiting worker was let in");
+            } catch (IllegalStateException e) {
+                failed.incrementAndGet();
+            }
+        });
+        waiter.setDaemon(true);
+        waiter.start();
+        // gives the waiter time to post its command, it fails either way
+        Thread.sleep(100);
+        workshop.close();
+        waiter.join(TimeUnit.SECONDS.toMillis(5));
+        if (waiter.isAlive() || failed.get() != 1) {
+            violations.add("close: a waiting worker did not fail");
+        }
+        try {
+            workshop.enter(ids.get(1));
+            violations.add("close: enter() after close() did not fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("workshop-dispatcher")) {
+                violations.add("close: the dispatcher thread is still alive");
+            }
+        }
+    }
+
+    private static void checkAuto(ConcurrentLinkedQueue<String> violations) {
+        var plain = new ArrayList<Workplace>();
+        var benches = new ArrayList<Workplace>();
+        for (int i = 0; i < 4; i++) {
+            plain.add(new CheckWorkplace(new CheckWorkplaceId(i), 1, violations));
+            benches.add(new CheckWorkplace(new CheckWorkplaceId(i), 4, violations));
+        }
+        var auto = new WorkshopConfig().setLogging(false).setAutoMinWorkplaces(1).setAutoMinCores(1);
+        if (!WorkshopFactory.DISPATCHER.equals(WorkshopFactory.selectEngine(plain, auto))) {
+            violations.add("auto: the dispatcher engine was not picked for plain workplaces");
+        }
+        if (WorkshopFactory.DISPATCHER.equals(WorkshopFactory.selectEngine(benches, auto))) {
+            violations.add("auto: the dispatcher engine was picked for workplaces of capacity 4");
+        }
+        var leases = new WorkshopConfig().setLogging(false).setAutoMinWorkplaces(1).setAutoMinCores(1).setLeaseMillis(50);
+        if (WorkshopFactory.DISPATCHER.equals(WorkshopFactory.selectEngine(plain, leases))) {
+            violations.add("auto: the dispatcher engine was picked with leases");
+        }
+        var journal = new WorkshopConfig().setLogging(false).setAutoMinWorkplaces(1).setAutoMinCores(1).setJournalDirectory("journal");
+        if (WorkshopFactory.DISPATCHER.equals(WorkshopFactory.selectEngine(plain, journal))) {
+            violations.add("auto: the dispatcher engine was picked with a journal");
+        }
+    }
+}
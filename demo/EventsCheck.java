@@ -0,0 +1,235 @@
+package cp2022.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cp2022.base.Workplace;
+import cp2022.base.WorkplaceId;
+import cp2022.solution.OrderlyWorkshop;
+import cp2022.solution.WorkshopConfig;
+import cp2022.solution.WorkshopEvent;
+import cp2022.solution.WorkshopEventPublisher;
+import cp2022.solution.WorkshopEventPublisher.Backpressure;
+
+/*
+ * Check of the workshop event stream. Workers enter, switch and leave while a
+ * Block subscriber, which must miss nothing, counts the events by kind against
+ * the calls made. A DropOldest subscriber that sleeps on every event must not
+ * hold up a fast one. A conflating subscriber must still learn which workplace
+ * a Switch freed after its target changed hands again. Every subscriber has to
+ * complete once the publisher is closed. Exits with status 1 on a violation or
+ * an exception.
+ *
+ * Usage: EventsCheck [workplaces] [workers] [rounds]
+ * (defaults: 8 workplaces, 8 workers, 200 rounds).
+ */
+public class EventsCheck {
+
+    private static class CheckWorkplaceId extends WorkplaceId {
+        private final int id;
+        public CheckWorkplaceId(int id) {
+            this.id = id;
+        }
+        @Override
+        public int compareTo(WorkplaceId other) {
+            return Integer.compare(this.id, ((CheckWorkplaceId)other).id);
+        }
+        @Override
+        public String toString() {
+            return "w" + this.id;
+        }
+    }
+
+    private static class CheckWorkplace extends Workplace {
+        public CheckWorkplace(CheckWorkplaceId id) {
+            super(id);
+        }
+        @Override
+        public void use() {
+            Thread.yield();
+        }
+    }
+
+    // requests up front, or nothing until told to
+    private static class Recorder implements Flow.Subscriber<WorkshopEvent> {
+        private final ConcurrentLinkedQueue<WorkshopEvent> events = new ConcurrentLinkedQueue<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final ConcurrentLinkedQueue<String> violations;
+        private final long initial;
+        private final long sleep;
+        private volatile Flow.Subscription subscription;
+
+        public Recorder(long initial, long sleep, ConcurrentLinkedQueue<String> violations) {
+            this.initial = initial;
+            this.sleep = sleep;
+            this.violations = violations;
+        }
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initial > 0) {
+                subscription.request(initial);
+            }
+        }
+        @Override
+        public void onNext(WorkshopEvent event) {
+            events.add(event);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("panic: unexpected thread interruption");
+                }
+            }
+        }
+        @Override
+        public void onError(Throwable throwable) {
+            violations.add("onError: " + throwable);
+        }
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+        public long count(WorkshopEvent.Kind kind) {
+            return events.stream().filter(event -> event.getKind() == kind).count();
+        }
+        public boolean awaitCompletion() throws InterruptedException {
+            return completed.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        var violations = new ConcurrentLinkedQueue<String>();
+        checkWorkshop(count, workers, rounds, violations);
+        checkSlowSubscriber(violations);
+        checkConflation(violations);
+
+        for (var violation : violations) {
+            System.out.println(violation);
+        }
+        System.out.printf("%d workplaces, %d workers, %d rounds: %s%n",
+                count, workers, rounds, violations.isEmpty() ? "ok" : "FAILED");
+        System.exit(violations.isEmpty() ? 0 : 1);
+    }
+
+    private static void checkWorkshop(int count, int workers, int rounds, ConcurrentLinkedQueue<String> violations)
+            throws InterruptedException {
+        List<CheckWorkplaceId> ids = new ArrayList<>(count);
+        List<Workplace> workplaces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var id = new CheckWorkplaceId(i);
+            ids.add(id);
+            workplaces.add(new CheckWorkplace(id));
+        }
+        var workshop = new OrderlyWorkshop(workplaces, new WorkshopConfig().setLogging(false));
+        var all = new Recorder(Long.MAX_VALUE, 0, violations);
+        workshop.events().subscribe(all, 16, Backpressure.Block);
+
+        var switches = new AtomicInteger();
+        var threads = new ArrayList<Thread>(workers);
+        for (int w = 0; w < workers; w++) {
+            var random = new Random(w);
+            var thread = new Thread(() -> {
+                try {
+                    for (int r = 0; r < rounds; r++) {
+                        var at = random.nextInt(count);
+                        workshop.enter(ids.get(at)).use();
+                        for (int s = random.nextInt(3); s > 0; s--) {
+                            // switching to where we are publishes nothing
+                            var to = (at + 1 + random.nextInt(count - 1)) % count;
+                            workshop.switchTo(ids.get(to)).use();
+                            at = to;
+                            switches.incrementAndGet();
+                        }
+                        workshop.leave();
+                    }
+                } catch (RuntimeException | Error e) {
+                    violations.add(Thread.currentThread().getName() + ": " + e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        workshop.events().close();
+        if (!all.awaitCompletion()) {
+            violations.add("workshop: the Block subscriber did not complete");
+        }
+        long calls = (long) workers * rounds;
+        if (all.count(WorkshopEvent.Kind.Enter) != calls || all.count(WorkshopEvent.Kind.Leave) != calls
+                || all.count(WorkshopEvent.Kind.Switch) != switches.get()) {
+            violations.add(String.format("workshop: %d enters, %d switches, %d leaves published for %d, %d, %d calls",
+                    all.count(WorkshopEvent.Kind.Enter), all.count(WorkshopEvent.Kind.Switch),
+                    all.count(WorkshopEvent.Kind.Leave), calls, switches.get(), calls));
+        }
+        if (workshop.events().getDropped() != 0) {
+            violations.add("workshop: " + workshop.events().getDropped() + " events dropped");
+        }
+    }
+
+    private static void checkSlowSubscriber(ConcurrentLinkedQueue<String> violations) throws InterruptedException {
+        var publisher = new WorkshopEventPublisher();
+        var slow = new Recorder(Long.MAX_VALUE, 200, violations);
+        var fast = new Recorder(Long.MAX_VALUE, 0, violations);
+        publisher.subscribe(slow, 4, Backpressure.DropOldest);
+        publisher.subscribe(fast, 32, Backpressure.DropOldest);
+
+        var id = new CheckWorkplaceId(0);
+        for (int i = 0; i < 20; i++) {
+            publisher.publish(WorkshopEvent.enter(i, 1, id));
+        }
+        Thread.sleep(1000);
+        if (fast.events.size() != 20) {
+            violations.add(String.format("slow subscriber: the fast one got %d of 20 events in 1 s", fast.events.size()));
+        }
+
+        publisher.close();
+        if (!slow.awaitCompletion() || !fast.awaitCompletion()) {
+            violations.add("slow subscriber: not completed after close()");
+        }
+    }
+
+    private static void checkConflation(ConcurrentLinkedQueue<String> violations) throws InterruptedException {
+        var publisher = new WorkshopEventPublisher();
+        var conflating = new Recorder(0, 0, violations);
+        publisher.subscribe(conflating, 8, Backpressure.ConflatePerWorkplace);
+
+        var w0 = new CheckWorkplaceId(0);
+        var w1 = new CheckWorkplaceId(1);
+        var w2 = new CheckWorkplaceId(2);
+        publisher.publish(WorkshopEvent.enter(0, 1, w0));
+        publisher.publish(WorkshopEvent.switchTo(1, 1, w0, w1));
+        publisher.publish(WorkshopEvent.enter(2, 2, w2));
+        publisher.publish(WorkshopEvent.leave(3, 1, w1));
+        // nothing is delivered before the publisher has conflated all of it
+        Thread.sleep(200);
+        conflating.subscription.request(Long.MAX_VALUE);
+        publisher.close();
+        if (!conflating.awaitCompletion()) {
+            violations.add("conflation: not completed after close()");
+        }
+
+        var freed = new ArrayList<WorkplaceId>();
+        for (var event : conflating.events) {
+            if (event.getFrom() != null) {
+                freed.add(event.getFrom());
+            }
+        }
+        if (!freed.contains(w0) || !freed.contains(w1)) {
+            violations.add("conflation: freed workplaces reported " + freed + ", not w0 and w1, in " + conflating.events);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package cp2022.demo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import cp2022.base.Workplace;
+import cp2022.base.WorkplaceId;
+import cp2022.solution.Identification;
+import cp2022.solution.OrderlyWorkshop;
+import cp2022.solution.WorkshopConfig;
+
+/*
+ * Journaling overhead and warm restart of a large workshop. Workers first churn
+ * through random enter/switchTo/leave calls on a workshop with and without the
+ * occupancy journal. Then holders each acquire a block of workplaces and stay,
+ * and a second workshop is started from the journal, which is timed against
+ * starting an empty one and against the holders acquiring everything again.
+ * Finally the holders release their workplaces in the restarted workshop.
+ * Workers go by assumed ids, as a journaled workshop requires.
+ *
+ * Usage: JournalBenchmark [workplaces] [workers] [rounds] [holders] [held each] [journal records]
+ * (defaults: 100000 workplaces, 32 workers, 2000 rounds, 8 holders, 10000 held each,
+ * 65536 records between snapshots).
+ */
+public class JournalBenchmark {
+
+    private static class BenchmarkWorkplaceId extends WorkplaceId {
+        private final int id;
+        public BenchmarkWorkplaceId(int id) {
+            this.id = id;
+        }
+        @Override
+        public int compareTo(WorkplaceId other) {
+            return Integer.compare(this.id, ((BenchmarkWorkplaceId)other).id);
+        }
+        @Override
+        public String toString() {
+            return "w" + this.id;
+        }
+    }
+
+    private static class BenchmarkWorkplace extends Workplace {
+        public BenchmarkWorkplace(BenchmarkWorkplaceId id) {
+            super(id);
+        }
+        @Override
+        public void use() {
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int holders = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        int heldEach = args.length > 4 ? Integer.parseInt(args[4]) : 10_000;
+        int records = args.length > 5 ? Integer.parseInt(args[5]) : 1 << 16;
+        if ((long) holders * heldEach > count) {
+            throw new IllegalArgumentException("holders would need more workplaces than there are");
+        }
+
+        List<BenchmarkWorkplaceId> ids = new ArrayList<>(count);
+        List<Workplace> workplaces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var id = new BenchmarkWorkplaceId(i);
+            ids.add(id);
+            workplaces.add(new BenchmarkWorkplace(id));
+        }
+
+        var directory = Files.createTempDirectory("cp2022-journal");
+        var plain = new WorkshopConfig().setLogging(false);
+        var journaled = new WorkshopConfig().setLogging(false)
+                .setJournalDirectory(directory.toString()).setJournalRecords(records);
+
+        // warm up both, then measure both
+        churn(new OrderlyWorkshop(workplaces, plain), ids, workers, rounds);
+        var warmup = new OrderlyWorkshop(workplaces, journaled);
+        churn(warmup, ids, workers, rounds);
+        warmup.journal().awaitSnapshot();
+        double plainSeconds = churn(new OrderlyWorkshop(workplaces, plain), ids, workers, rounds);
+        var workshop = new OrderlyWorkshop(workplaces, journaled);
+        double journaledSeconds = churn(workshop, ids, workers, rounds);
+        long calls = (long) workers * rounds * 3;
+        System.out.printf("churn, %d workplaces, %d workers: plain %.0f calls/s, journaled %.0f calls/s (%+.1f%%), %s%n",
+                count, workers, calls / plainSeconds, calls / journaledSeconds,
+                (journaledSeconds / plainSeconds - 1) * 100, workshop.journal());
+
+        // holders take their blocks and keep them across the restart
+        var held = new CountDownLatch(holders);
+        var restarted = new OrderlyWorkshop[1];
+        var restartedReady = new CountDownLatch(1);
+        var released = new CountDownLatch(holders);
+        long acquireStart = System.nanoTime();
+        for (int h = 0; h < holders; h++) {
+            var block = ids.subList(h * heldEach, (h + 1) * heldEach);
+            var uid = workers + h;
+            new Thread(() -> {
+                try {
+                    Identification.assume(uid);
+                    workshop.acquire(new ArrayList<WorkplaceId>(block));
+                    held.countDown();
+                    restartedReady.await();
+                    restarted[0].release(new ArrayList<WorkplaceId>(block));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("panic: unexpected thread interruption");
+                } finally {
+                    released.countDown();
+                }
+            }).start();
+        }
+        held.await();
+        double acquireSeconds = (System.nanoTime() - acquireStart) / 1e9;
+
+        long start = System.nanoTime();
+        new OrderlyWorkshop(workplaces, plain);
+        double emptySeconds = (System.nanoTime() - start) / 1e9;
+
+        // the first workshop is simply abandoned, as if its process had gone down; a snapshot
+        // it is still writing would race the restarted workshop for the files, so it is waited for
+        workshop.journal().awaitSnapshot();
+        start = System.nanoTime();
+        restarted[0] = new OrderlyWorkshop(workplaces, journaled);
+        double restartSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("restart with %d occupants: %.1f ms from the journal, %.1f ms for an empty workshop, %.1f ms to acquire them anew, %s%n",
+                holders * heldEach, restartSeconds * 1e3, emptySeconds * 1e3, acquireSeconds * 1e3, restarted[0].journal());
+
+        restartedReady.countDown();
+        released.await();
+        System.out.printf("released in the restarted workshop: %s%n", restarted[0].journal());
+
+        restarted[0].journal().awaitSnapshot();
+        for (var name : List.of("journal.0", "journal.1", "snapshot")) {
+            Files.deleteIfExists(directory.resolve(name));
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    private static double churn(OrderlyWorkshop workshop, List<BenchmarkWorkplaceId> ids, int workers, int rounds)
+            throws InterruptedException {
+        var threads = new ArrayList<Thread>(workers);
+        long start = System.nanoTime();
+        for (int w = 0; w < workers; w++) {
+            var random = new Random(w);
+            var uid = w;
+            var thread = new Thread(() -> {
+                Identification.assume(uid);
+                for (int r = 0; r < rounds; r++) {
+                    workshop.enter(ids.get(random.nextInt(ids.size()))).use();
+                    workshop.switchTo(ids.get(random.nextInt(ids.size()))).use();
+                    workshop.leave();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // joined rather than counted down, the next run's workers take over these ids
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+}
@@ -0,0 +1,213 @@
+package cp2022.demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import cp2022.base.Workplace;
+import cp2022.base.WorkplaceId;
+import cp2022.solution.Identification;
+import cp2022.solution.OrderlyWorkshop;
+import cp2022.solution.WorkshopConfig;
+
+/*
+ * Check of crash recovery from the occupancy journal. A worker takes random
+ * steps (enter, switchTo, acquire, leave) on a journaled workshop with a small
+ * journal, so generations and snapshots go by quickly. After every step the
+ * journal directory is copied, as the process would leave it if it went down
+ * right then, and a workshop started on the copy has to come up with exactly
+ * the workplaces the worker holds. So does one started on the copy with the
+ * newest snapshot replaced by the one before, as if the process had gone down
+ * while writing it, and a second restart on whatever the first one left
+ * behind. Finally the worker leaves the last restarted workshop, which must end
+ * up empty. Exits with status 1 on a violation or an exception.
+ *
+ * Usage: JournalCrashCheck [workplaces] [steps] [journal records]
+ * (defaults: 6 workplaces, 300 steps, 8 records between snapshots).
+ */
+public class JournalCrashCheck {
+
+    private static class CheckWorkplaceId extends WorkplaceId {
+        private final int id;
+        public CheckWorkplaceId(int id) {
+            this.id = id;
+        }
+        @Override
+        public int compareTo(WorkplaceId other) {
+            return Integer.compare(this.id, ((CheckWorkplaceId)other).id);
+        }
+        @Override
+        public String toString() {
+            return "w" + this.id;
+        }
+    }
+
+    private static class CheckWorkplace extends Workplace {
+        public CheckWorkplace(CheckWorkplaceId id) {
+            super(id);
+        }
+        @Override
+        public void use() {
+        }
+    }
+
+    private static final List<String> FILES = List.of("journal.0", "journal.1", "snapshot");
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        int records = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        var violations = new ConcurrentLinkedQueue<String>();
+        List<CheckWorkplaceId> ids = new ArrayList<>(count);
+        List<Workplace> workplaces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var id = new CheckWorkplaceId(i);
+            ids.add(id);
+            workplaces.add(new CheckWorkplace(id));
+        }
+
+        var directory = Files.createTempDirectory("cp2022-crash");
+        var crashed = Files.createTempDirectory("cp2022-crashed");
+        var workshop = new OrderlyWorkshop(workplaces, config(directory, records));
+        Identification.assume(1);
+
+        var random = new Random(1);
+        var held = new TreeSet<Integer>();
+        byte[] latest = null;
+        byte[] previous = null;
+        int recoveries = 0;
+        for (int step = 0; step < steps && violations.isEmpty(); step++) {
+            if (held.isEmpty()) {
+                var at = random.nextInt(count);
+                workshop.enter(ids.get(at));
+                held.add(at);
+            } else {
+                switch (random.nextInt(3)) {
+                    case 0 -> {
+                        workshop.leave();
+                        held.clear();
+                    }
+                    case 1 -> {
+                        // switchTo is for a worker holding a single workplace
+                        if (held.size() == 1) {
+                            var at = random.nextInt(count);
+                            workshop.switchTo(ids.get(at));
+                            held.clear();
+                            held.add(at);
+                        }
+                    }
+                    default -> {
+                        var at = random.nextInt(count);
+                        workshop.acquire(List.of(ids.get(at)));
+                        held.add(at);
+                    }
+                }
+            }
+            // the snapshot thread is not what this check is about
+            workshop.journal().awaitSnapshot();
+
+            var snapshot = directory.resolve("snapshot");
+            if (Files.exists(snapshot)) {
+                var bytes = Files.readAllBytes(snapshot);
+                if (latest == null || generation(bytes) != generation(latest)) {
+                    previous = latest;
+                    latest = bytes;
+                }
+            }
+
+            copy(directory, crashed);
+            recover(workplaces, crashed, records, held, "step " + step, violations);
+            recoveries++;
+            // the journal of the generation before the newest snapshot is only reused once that
+            // snapshot is in place, so the snapshot of that generation and the journals still add
+            // up; one step may go through several generations, leaving no such snapshot
+            if (previous != null && generation(previous) == generation(latest) - 1) {
+                copy(directory, crashed);
+                Files.write(crashed.resolve("snapshot"), previous);
+                recover(workplaces, crashed, records, held, "step " + step + ", newest snapshot lost", violations);
+                recoveries++;
+            }
+        }
+
+        copy(directory, crashed);
+        var restarted = recover(workplaces, crashed, records, held, "end", violations);
+        if (!held.isEmpty()) {
+            if (held.size() == 1) {
+                restarted.leave();
+            } else {
+                var release = new ArrayList<WorkplaceId>();
+                for (var at : held) {
+                    release.add(ids.get(at));
+                }
+                restarted.release(release);
+            }
+            restarted.journal().awaitSnapshot();
+            if (!restarted.journal().getOccupancy().isEmpty()) {
+                violations.add("left over after leaving the restarted workshop: " + restarted.journal().getOccupancy());
+            }
+        }
+
+        workshop.close();
+        for (var name : FILES) {
+            Files.deleteIfExists(directory.resolve(name));
+            Files.deleteIfExists(crashed.resolve(name));
+        }
+        Files.deleteIfExists(directory);
+        Files.deleteIfExists(crashed);
+
+        for (var violation : violations) {
+            System.out.println(violation);
+        }
+        System.out.printf("%d workplaces, %d steps, %d records: %d recoveries, %s%n",
+                count, steps, records, recoveries, violations.isEmpty() ? "ok" : "FAILED");
+        System.exit(violations.isEmpty() ? 0 : 1);
+    }
+
+    private static WorkshopConfig config(Path directory, int records) {
+        return new WorkshopConfig().setLogging(false).setJournalDirectory(directory.toString()).setJournalRecords(records);
+    }
+
+    // starts a workshop on the directory twice, the second time on what the first one left behind
+    private static OrderlyWorkshop recover(Collection<Workplace> workplaces, Path directory, int records,
+                                          TreeSet<Integer> held, String label, ConcurrentLinkedQueue<String> violations) {
+        OrderlyWorkshop restarted = null;
+        for (var attempt : List.of("restart", "second restart")) {
+            restarted = new OrderlyWorkshop(workplaces, config(directory, records));
+            restarted.journal().awaitSnapshot();
+            var recovered = new TreeSet<Integer>();
+            for (var entry : restarted.journal().getOccupancy()) {
+                if (entry.uid() != 1) {
+                    violations.add(String.format("%s, %s: unknown worker %d", label, attempt, entry.uid()));
+                }
+                recovered.add(((CheckWorkplaceId) entry.wid()).id);
+            }
+            if (!recovered.equals(held)) {
+                violations.add(String.format("%s, %s: recovered %s, held %s", label, attempt, recovered, held));
+            }
+        }
+        return restarted;
+    }
+
+    private static int generation(byte[] snapshot) {
+        return ByteBuffer.wrap(snapshot).getInt(4);
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        for (var name : FILES) {
+            if (Files.exists(from.resolve(name))) {
+                Files.copy(from.resolve(name), to.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(to.resolve(name));
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package cp2022.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cp2022.base.Workplace;
+import cp2022.base.WorkplaceId;
+import cp2022.solution.OrderlyWorkshop;
+import cp2022.solution.WorkshopConfig;
+
+/*
+ * Check of lease expiry. Some workers enter and then stall, some die with an
+ * exception inside use(), and the rest churn through enter/switchTo/leave,
+ * which they could not finish unless the workplaces of the stalled and the dead
+ * were reclaimed. Each workplace counts its users, so two of them at once is
+ * caught in use(). Once the stalled workers wake up, their use(), renew() and
+ * leave() have to fail, and after close() no lease wheel thread may be left.
+ * Exits with status 1 on a violation, an exception, or if the workers do not
+ * finish within the time limit.
+ *
+ * Usage: LeaseExpiryCheck [workplaces] [workers] [rounds] [stalled] [lease in ms] [time limit in s]
+ * (defaults: 4 workplaces, 8 workers, 100 rounds, 3 stalled, 50 ms, 60 s).
+ */
+public class LeaseExpiryCheck {
+
+    private static class CheckWorkplaceId extends WorkplaceId {
+        private final int id;
+        public CheckWorkplaceId(int id) {
+            this.id = id;
+        }
+        @Override
+        public int compareTo(WorkplaceId other) {
+            return Integer.compare(this.id, ((CheckWorkplaceId)other).id);
+        }
+        @Override
+        public String toString() {
+            return "w" + this.id;
+        }
+    }
+
+    private static class CheckWorkplace extends Workplace {
+        private final AtomicInteger users = new AtomicInteger();
+        private final ConcurrentLinkedQueue<String> violations;
+        public CheckWorkplace(CheckWorkplaceId id, ConcurrentLinkedQueue<String> violations) {
+            super(id);
+            this.violations = violations;
+        }
+        @Override
+        public void use() {
+            int now = users.incrementAndGet();
+            try {
+                if (now > getCapacity()) {
+                    violations.add(String.format("%d users in %s of capacity %d", now, getId(), getCapacity()));
+                }
+                if (Thread.currentThread().getName().startsWith("dying")) {
+                    throw new IllegalStateException("worker died in use()");
+                }
+                Thread.yield();
+            } finally {
+                users.decrementAndGet();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int stalled = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        long lease = args.length > 4 ? Long.parseLong(args[4]) : 50;
+        long limit = args.length > 5 ? Long.parseLong(args[5]) : 60;
+
+        var violations = new ConcurrentLinkedQueue<String>();
+        List<CheckWorkplaceId> ids = new ArrayList<>(count);
+        List<Workplace> workplaces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var id = new CheckWorkplaceId(i);
+            ids.add(id);
+            workplaces.add(new CheckWorkplace(id, violations));
+        }
+        var workshop = new OrderlyWorkshop(workplaces, new WorkshopConfig().setLogging(false)
+                .setLeaseMillis(lease).setLeaseTickMillis(Math.max(1, lease / 10)));
+
+        // stalled workers sleep well past their lease, then find out they lost it
+        var wake = new CountDownLatch(1);
+        var stalledThreads = new ArrayList<Thread>(stalled);
+        var failedCalls = new AtomicInteger();
+        for (int s = 0; s < stalled; s++) {
+            var id = ids.get(s % count);
+            var used = s % 2 == 0;
+            var thread = new Thread(() -> {
+                var workplace = workshop.enter(id);
+                if (used) {
+                    workplace.use();
+                }
+                try {
+                    wake.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("panic: unexpected thread interruption");
+                }
+                for (Runnable call : List.<Runnable>of(workplace::use, workshop::renew, workshop::leave)) {
+                    try {
+                        call.run();
+                    } catch (IllegalStateException e) {
+                        failedCalls.incrementAndGet();
+                    }
+                }
+            }, "stalled-" + s);
+            thread.setDaemon(true);
+            stalledThreads.add(thread);
+            thread.start();
+        }
+        // and as many die inside use() without ever leaving
+        for (int d = 0; d < stalled; d++) {
+            var id = ids.get((stalled + d) % count);
+            var thread = new Thread(() -> workshop.enter(id).use(), "dying-" + d);
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, e) -> { });
+            thread.start();
+            thread.join();
+        }
+
+        var threads = new ArrayList<Thread>(workers);
+        for (int w = 0; w < workers; w++) {
+            var random = new Random(w);
+            var thread = new Thread(() -> {
+                try {
+                    for (int r = 0; r < rounds; r++) {
+                        workshop.enter(ids.get(random.nextInt(count))).use();
+                        for (int s = random.nextInt(3); s > 0; s--) {
+                            workshop.switchTo(ids.get(random.nextInt(count))).use();
+                            workshop.renew();
+                        }
+                        workshop.leave();
+                    }
+                } catch (RuntimeException | Error e) {
+                    violations.add(Thread.currentThread().getName() + ": " + e);
+                }
+            });
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(limit);
+        for (var thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (thread.isAlive()) {
+                violations.add("workers did not finish within " + limit + " s, the stalled ones' workplaces were not reclaimed");
+                break;
+            }
+        }
+
+        // every stalled and dead worker's lease runs out, if it has not by now
+        Thread.sleep(lease * 4);
+        wake.countDown();
+        for (var thread : stalledThreads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        if (failedCalls.get() != 3 * stalled) {
+            violations.add(String.format("%d of %d calls by stalled workers failed after their leases were revoked",
+                    failedCalls.get(), 3 * stalled));
+        }
+        if (workshop.metrics().getRevoked() != 2L * stalled) {
+            violations.add(String.format("%d leases revoked, not %d", workshop.metrics().getRevoked(), 2 * stalled));
+        }
+
+        workshop.close();
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("workshop-leases")) {
+                violations.add("the lease wheel thread is still alive after close()");
+            }
+        }
+
+        for (var violation : violations) {
+            System.out.println(violation);
+        }
+        System.out.printf("%d workplaces, %d workers, %d rounds, %d stalled and %d dead workers, %d ms leases: %s%n",
+                count, workers, rounds, stalled, stalled, lease, violations.isEmpty() ? "ok" : "FAILED");
+        System.exit(violations.isEmpty() ? 0 : 1);
+    }
+}
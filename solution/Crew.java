@@ -0,0 +1,90 @@
+package cp2022.solution;
+
+import cp2022.base.WorkplaceId;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/*
+ * A set of workers that enter the workshop together, each at its own workplace.
+ * Every member calls OrderlyWorkshop.enter(crew, wid); the last one to arrive
+ * files the request, and all of them are let in at once.
+ */
+public class Crew {
+    private final List<WorkplaceId> workplaces;
+    private final Map<WorkplaceId, Long> members;
+    private final Semaphore delay = new Semaphore(0);
+    private final CountDownLatch admission = new CountDownLatch(1);
+    private long time = -1;
+    private boolean reserved = false;
+
+    public Crew(Collection<WorkplaceId> workplaces) {
+        this.workplaces = List.copyOf(workplaces);
+        this.members = new HashMap<>(workplaces.size());
+
+        if (new HashSet<>(this.workplaces).size() != this.workplaces.size()) {
+            throw new IllegalArgumentException("crew workplaces must be distinct");
+        }
+    }
+
+    public List<WorkplaceId> getWorkplaces() {
+        return workplaces;
+    }
+
+    public int size() {
+        return workplaces.size();
+    }
+
+    // returns whether the crew is complete
+    boolean join(long uid, WorkplaceId wid) {
+        if (!workplaces.contains(wid)) {
+            throw new IllegalArgumentException(String.format("%s is not a workplace of this crew", wid));
+        }
+        if (members.containsKey(wid)) {
+            throw new IllegalArgumentException(String.format("%s is already taken by %s", wid, members.get(wid)));
+        }
+
+        members.put(wid, uid);
+        return members.size() == workplaces.size();
+    }
+
+    long getMember(WorkplaceId wid) {
+        return members.get(wid);
+    }
+
+    long getTime() {
+        return time;
+    }
+
+    void setTime(long time) {
+        this.time = time;
+    }
+
+    boolean isReserved() {
+        return reserved;
+    }
+
+    void setReserved(boolean reserved) {
+        this.reserved = reserved;
+    }
+
+    void await() throws InterruptedException {
+        delay.acquire();
+    }
+
+    // entrants held back by the crew's reservation wait here
+    void awaitAdmission() throws InterruptedException {
+        admission.await();
+    }
+
+    void signal() {
+        admission.countDown();
+        delay.release(workplaces.size());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(crew t: %s, %s)", time, members);
+    }
+}
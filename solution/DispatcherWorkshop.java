@@ -0,0 +1,449 @@
+package cp2022.solution;
+
+import cp2022.base.Workplace;
+import cp2022.base.WorkplaceId;
+import cp2022.base.Workshop;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Workshop engine in which no worker ever touches the shared state. Workers post
+ * commands to a lock-free queue and park; a single dispatcher thread drains the
+ * queue in batches, applies the commands to the state it alone owns and unparks
+ * only the workers whose commands were granted.
+ *
+ * Semantics follow OrderlyWorkshop: switching workers go before entering ones,
+ * entering ones may not overtake the oldest waiting entrant by 2n-1 or more,
+ * cycles of switching workers rotate at once and a workplace handed over by a
+ * switching worker may be used only after that worker returned from switchTo.
+ * Workplace capacities and leases are not honoured: every workplace takes one
+ * worker at a time, for as long as it likes. Nor is occupancy journaled. So the
+ * constructor rejects workplaces of a larger capacity and configs with leases
+ * or a journal, see supports().
+ *
+ * close() stops the dispatcher thread. Workers still waiting then, and any call
+ * made afterwards, fail with an IllegalStateException.
+ */
+public class DispatcherWorkshop implements Workshop, AutoCloseable {
+    private enum Kind {
+        Enter, Switch, Leave
+    }
+
+    private static class Command {
+        private final Kind kind;
+        private final long uid;
+        private final WorkplaceId wid;
+        private final Thread thread;
+        private final long start = System.nanoTime();
+        // counted down once the worker returned, lets the next occupant of its previous workplace use it
+        private final CountDownLatch returned = new CountDownLatch(1);
+        private long time;
+        private volatile Station granted;
+        private volatile RuntimeException failure;
+
+        public Command(Kind kind, long uid, WorkplaceId wid) {
+            this.kind = kind;
+            this.uid = uid;
+            this.wid = wid;
+            this.thread = kind == Kind.Leave ? null : Thread.currentThread();
+        }
+    }
+
+    private class Station extends Workplace {
+        private final Workplace internalWorkplace;
+        private final ArrayDeque<Command> switchers = new ArrayDeque<>();
+        private final ArrayDeque<Command> entrants = new ArrayDeque<>();
+        // dispatcher state
+        private Worker owner;
+        private boolean scheduled;
+        // written by the dispatcher before the grant is published, read by the occupant
+        private Command predecessor;
+
+        public Station(Workplace workplace) {
+            super(workplace.getId());
+            internalWorkplace = workplace;
+        }
+
+        @Override
+        public void use() {
+            var p = predecessor;
+            if (p != null) {
+                try {
+                    p.returned.await();
+                } catch (InterruptedException e) {
+                    ErrorHandling.panic();
+                }
+            }
+
+            var start = System.nanoTime();
+            internalWorkplace.use();
+            var nanos = System.nanoTime() - start;
+            metrics.recordUse(nanos);
+        }
+    }
+
+    private static class Worker {
+        private final long uid;
+        private Station at;
+        private Command pending;
+
+        public Worker(long uid) {
+            this.uid = uid;
+        }
+    }
+
+    public static final int DEFAULT_BATCH = 256;
+
+    private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean idle = new AtomicBoolean(false);
+    private final Thread dispatcher;
+    private final int batch;
+    private final boolean logging;
+    private final boolean trace;
+    private volatile boolean closed = false;
+    private final WorkshopEventPublisher events;
+    private final SchedulingMetrics metrics;
+
+    // owned by the dispatcher thread
+    private final HashMap<WorkplaceId, Station> stations;
+    private final HashMap<Long, Worker> workers = new HashMap<>();
+    private final TreeMap<Long, Command> waitingEntrants = new TreeMap<>();
+    private final ArrayDeque<Station> freed = new ArrayDeque<>();
+    // free workplaces whose first entrant was held back by the starvation bound
+    private final ArrayList<Station> heldBack = new ArrayList<>();
+    private final ArrayList<Command> granted = new ArrayList<>();
+    private long currentTime = 0;
+    private final long n;
+
+    public DispatcherWorkshop(Collection<Workplace> workplaces) {
+        this(workplaces, WorkshopConfig.fromSystemProperties());
+    }
+
+    public DispatcherWorkshop(Collection<Workplace> workplaces, WorkshopConfig config) {
+        if (!supports(workplaces, config)) {
+            throw new IllegalArgumentException(String.format(
+                    "the dispatcher engine takes neither capacities above 1, leases nor a journal: %s", config));
+        }
+        n = workplaces.size();
+        batch = config.getDispatcherBatch();
+        logging = config.isLogging();
+        trace = config.isDispatcherTrace();
+        events = config.getEvents() != null ? config.getEvents() : new WorkshopEventPublisher();
+        metrics = new SchedulingMetrics(workplaces.size());
+        stations = new HashMap<>(workplaces.size() * 2);
+        for (var workplace : workplaces) {
+            stations.put(workplace.getId(), new Station(workplace));
+        }
+
+        dispatcher = new Thread(this::dispatch, "workshop-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public static boolean supports(Collection<Workplace> workplaces, WorkshopConfig config) {
+        if (config.hasLeases() || config.getJournalDirectory() != null) {
+            return false;
+        }
+        for (var workplace : workplaces) {
+            if (workplace.getCapacity() > 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public WorkshopEventPublisher events() {
+        return events;
+    }
+
+    public SchedulingMetrics metrics() {
+        return metrics;
+    }
+
+    // Stops the dispatcher once it is done with its batch and waits for it to exit.
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(dispatcher);
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            ErrorHandling.panic();
+        }
+    }
+
+    @Override
+    public Workplace enter(WorkplaceId wid) {
+        return await(post(new Command(Kind.Enter, Identification.uid(), wid)));
+    }
+
+    @Override
+    public Workplace switchTo(WorkplaceId wid) {
+        return await(post(new Command(Kind.Switch, Identification.uid(), wid)));
+    }
+
+    // commands of one thread are applied in the order they were posted, so nothing to wait for
+    @Override
+    public void leave() {
+        post(new Command(Kind.Leave, Identification.uid(), null));
+    }
+
+    private Command post(Command command) {
+        if (closed) {
+            throw new IllegalStateException("workshop closed");
+        }
+        commands.offer(command);
+        // the dispatcher may have drained the queue for the last time before our offer;
+        // if it has not taken the command, nobody will, otherwise it fails it
+        if (closed && commands.remove(command)) {
+            throw new IllegalStateException("workshop closed");
+        }
+        if (idle.compareAndSet(true, false)) {
+            LockSupport.unpark(dispatcher);
+        }
+        return command;
+    }
+
+    private Workplace await(Command command) {
+        Station station;
+        while ((station = command.granted) == null) {
+            if (command.failure != null) {
+                throw command.failure;
+            }
+            LockSupport.park(this);
+        }
+        metrics.recordWait(System.nanoTime() - command.start);
+        command.returned.countDown();
+        return station;
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            var command = commands.poll();
+            if (command == null) {
+                idle.set(true);
+                // a command posted before idle was set did not unpark us
+                if (commands.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                idle.set(false);
+                continue;
+            }
+
+            int applied = 0;
+            do {
+                try {
+                    apply(command);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    fail(command, e);
+                }
+                applied++;
+            } while (applied < batch && (command = commands.poll()) != null);
+
+            schedule();
+            log(applied);
+            for (var c : granted) {
+                LockSupport.unpark(c.thread);
+            }
+            granted.clear();
+        }
+        abandon();
+    }
+
+    // fails the commands left in the queue and those still waiting for a workplace
+    private void abandon() {
+        var failure = new IllegalStateException("workshop closed");
+        Command command;
+        while ((command = commands.poll()) != null) {
+            if (command.thread != null) {
+                granted.add(command);
+            }
+        }
+        for (var station : stations.values()) {
+            granted.addAll(station.switchers);
+            granted.addAll(station.entrants);
+            station.switchers.clear();
+            station.entrants.clear();
+        }
+        for (var c : granted) {
+            c.failure = failure;
+            LockSupport.unpark(c.thread);
+        }
+        granted.clear();
+    }
+
+    private void log(int applied) {
+        if (!trace) {
+            return;
+        }
+        System.out.printf("[Dispatcher] t: %d, applied: %d, granted: %d, waiting entrants: %d%n",
+                currentTime, applied, granted.size(), waitingEntrants.size());
+    }
+
+    // misuse is reported to the worker that posted the command; a stray leave() has nobody to report to
+    private void fail(Command command, RuntimeException e) {
+        if (command.thread == null) {
+            if (logging) {
+                System.out.printf("[Dispatcher] ignored: %s%n", e.getMessage());
+            }
+            return;
+        }
+        command.failure = e;
+        granted.add(command);
+    }
+
+    private void apply(Command command) {
+        switch (command.kind) {
+            case Enter -> {
+                var station = station(command.wid);
+                command.time = currentTime++;
+                station.entrants.add(command);
+                waitingEntrants.put(command.time, command);
+                free(station);
+            }
+            case Switch -> {
+                var worker = workers.get(command.uid);
+                if (worker == null || worker.at == null) {
+                    throw new IllegalStateException(String.format("switchTo(%s) by %s, which is not in the workshop", command.wid, command.uid));
+                }
+                command.time = currentTime;
+                var station = station(command.wid);
+                if (station == worker.at) {
+                    grant(command, worker, station);
+                    return;
+                }
+
+                worker.pending = command;
+                station.switchers.add(command);
+                if (station.owner == null) {
+                    free(station);
+                } else {
+                    rotate(worker);
+                }
+            }
+            case Leave -> {
+                var worker = workers.remove(command.uid);
+                if (worker == null || worker.at == null) {
+                    throw new IllegalStateException(String.format("leave() by %s, which is not in the workshop", command.uid));
+                }
+                var station = worker.at;
+                station.owner = null;
+                station.predecessor = null;
+                free(station);
+                events.publish(WorkshopEvent.leave(currentTime, command.uid, station.getId()));
+            }
+        }
+    }
+
+    private Station station(WorkplaceId wid) {
+        var station = stations.get(wid);
+        if (station == null) {
+            throw new IllegalArgumentException(String.format("unknown workplace %s", wid));
+        }
+        return station;
+    }
+
+    private void free(Station station) {
+        if (!station.scheduled) {
+            station.scheduled = true;
+            freed.add(station);
+        }
+    }
+
+    // follows the wait-for chain from the worker's target; a cycle can only close at the newest edge
+    private void rotate(Worker initiator) {
+        var cycle = new ArrayList<Worker>();
+        var worker = initiator;
+        do {
+            cycle.add(worker);
+            var target = stations.get(worker.pending.wid);
+            worker = target.owner;
+            if (worker == null || worker.pending == null || cycle.size() > n) {
+                return;
+            }
+        } while (worker != initiator);
+
+        var wids = new HashSet<WorkplaceId>();
+        var moves = new ArrayList<Station>(cycle.size());
+        for (var member : cycle) {
+            var target = stations.get(member.pending.wid);
+            target.switchers.remove(member.pending);
+            moves.add(target);
+            wids.add(target.getId());
+        }
+        // every target is owned by the next member, which moves on at the same time
+        for (int i = 0; i < cycle.size(); i++) {
+            var target = moves.get(i);
+            target.predecessor = cycle.get((i + 1) % cycle.size()).pending;
+        }
+        for (int i = 0; i < cycle.size(); i++) {
+            var member = cycle.get(i);
+            var command = member.pending;
+            var from = member.at;
+            var target = moves.get(i);
+            target.owner = member;
+            member.at = target;
+            member.pending = null;
+            command.granted = target;
+            granted.add(command);
+            events.publish(WorkshopEvent.switchTo(currentTime, member.uid, from.getId(), target.getId()));
+        }
+        events.publish(WorkshopEvent.cycle(currentTime, initiator.uid, wids));
+    }
+
+    private void schedule() {
+        while (!freed.isEmpty()) {
+            var station = freed.poll();
+            station.scheduled = false;
+            if (station.owner != null) {
+                continue;
+            }
+
+            var command = station.switchers.poll();
+            if (command != null) {
+                var worker = workers.get(command.uid);
+                var from = worker.at;
+                from.owner = null;
+                free(from);
+                grant(command, worker, station);
+                // the freed workplace may be used by the next one only after we are out of switchTo
+                from.predecessor = command;
+                events.publish(WorkshopEvent.switchTo(currentTime, command.uid, from.getId(), station.getId()));
+                continue;
+            }
+
+            command = station.entrants.peek();
+            if (command == null) {
+                continue;
+            }
+            if (command.time - waitingEntrants.firstKey() >= 2 * n - 1) {
+                heldBack.add(station);
+                continue;
+            }
+
+            station.entrants.poll();
+            var oldest = waitingEntrants.firstKey() == command.time;
+            waitingEntrants.remove(command.time);
+            var worker = new Worker(command.uid);
+            workers.put(command.uid, worker);
+            grant(command, worker, station);
+            events.publish(WorkshopEvent.enter(command.time, command.uid, station.getId()));
+            if (oldest) {
+                heldBack.forEach(this::free);
+                heldBack.clear();
+            }
+        }
+    }
+
+    private void grant(Command command, Worker worker, Station station) {
+        station.owner = worker;
+        worker.at = station;
+        worker.pending = null;
+        command.granted = station;
+        granted.add(command);
+    }
+}
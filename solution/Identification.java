@@ -1,7 +1,35 @@
 package cp2022.solution;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 public class Identification {
+    private static final ThreadLocal<Long> assumed = new ThreadLocal<>();
+    // assumed ids by the thread going by them
+    private static final ConcurrentHashMap<Long, Thread> claims = new ConcurrentHashMap<>();
+
     public static long uid() {
-        return Thread.currentThread().getId();
+        var uid = assumed.get();
+        return uid != null ? uid : Thread.currentThread().getId();
+    }
+
+    // A worker taken over from the journal of an earlier workshop carries on under its old id.
+    // Workshops with a journal only take workers going by such ids, so that a thread id of the
+    // new process never stands for an occupant of the old one. An id can be taken over from a
+    // thread that has ended, but not from a live one.
+    public static void assume(long uid) {
+        var current = Thread.currentThread();
+        var owner = claims.compute(uid, (id, thread) -> thread == null || thread == current || !thread.isAlive() ? current : thread);
+        if (owner != current) {
+            throw new IllegalStateException(String.format("id %d already assumed by %s", uid, owner.getName()));
+        }
+        var previous = assumed.get();
+        if (previous != null && previous != uid) {
+            claims.remove(previous, current);
+        }
+        assumed.set(uid);
+    }
+
+    public static boolean isAssumed() {
+        return assumed.get() != null;
     }
 }
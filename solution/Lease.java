@@ -0,0 +1,74 @@
+package cp2022.solution;
+
+/*
+ * A worker's hold on its workplaces, lost unless renewed within the duration.
+ * It is suspended while the worker waits in the workshop or uses a workplace, as
+ * then it is not the worker that keeps the workplaces from the others.
+ */
+public class Lease {
+    private final long uid;
+    private final long duration;
+    private long deadline;
+    private boolean suspended = false;
+    private boolean revoked = false;
+    private boolean released = false;
+
+    public Lease(long uid, long durationNanos) {
+        this.uid = uid;
+        this.duration = durationNanos;
+        this.deadline = System.nanoTime() + durationNanos;
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    // false once the lease was revoked: the worker no longer holds anything
+    public synchronized boolean renew() {
+        if (revoked) {
+            return false;
+        }
+        deadline = System.nanoTime() + duration;
+        suspended = false;
+        return true;
+    }
+
+    public synchronized boolean suspend() {
+        if (revoked) {
+            return false;
+        }
+        suspended = true;
+        return true;
+    }
+
+    public synchronized boolean revokeIfExpired(long now) {
+        if (revoked || released || suspended || now - deadline < 0) {
+            return false;
+        }
+        revoked = true;
+        return true;
+    }
+
+    // the worker left, the wheel drops the lease when it comes across it
+    public synchronized void release() {
+        released = true;
+    }
+
+    public synchronized boolean isReleased() {
+        return released || revoked;
+    }
+
+    // nanoseconds left, Long.MAX_VALUE while suspended
+    public synchronized long remaining(long now) {
+        return suspended ? Long.MAX_VALUE : deadline - now;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("(u: %s, suspended: %s, revoked: %s, released: %s)", uid, suspended, revoked, released);
+    }
+}
@@ -0,0 +1,100 @@
+package cp2022.solution;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/*
+ * Hashed timing wheel of leases, turned by its own daemon thread one slot per tick.
+ * Renewing a lease does not touch the wheel: when the lease's slot comes round and
+ * its deadline has moved, it is put in the slot of the new deadline, and deadlines
+ * further than a full turn away are handled the same way. Only leases found expired
+ * are handed to the expiry callback, on the wheel thread. close() stops the thread.
+ */
+public class LeaseWheel {
+    public static final int SLOTS = 512;
+
+    private final ArrayList<ArrayDeque<Lease>> wheel = new ArrayList<>(SLOTS);
+    // leases scheduled by the workers, put in their slots by the wheel thread
+    private final ConcurrentLinkedQueue<Lease> scheduled = new ConcurrentLinkedQueue<>();
+    private final long tick;
+    private final Consumer<Lease> expire;
+    private final long start = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private long current = 0;
+
+    public LeaseWheel(long tickNanos, Consumer<Lease> expire) {
+        this.tick = tickNanos;
+        this.expire = expire;
+        for (int i = 0; i < SLOTS; i++) {
+            wheel.add(new ArrayDeque<>());
+        }
+
+        thread = new Thread(this::turn, "workshop-leases");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void schedule(Lease lease) {
+        scheduled.offer(lease);
+    }
+
+    // Leases stop expiring once it returns. Not to be called from the expiry callback.
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            ErrorHandling.panic();
+        }
+    }
+
+    private void turn() {
+        while (!closed) {
+            var delay = start + (current + 1) * tick - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(this, delay);
+                continue;
+            }
+
+            current++;
+            advance();
+        }
+    }
+
+    private void advance() {
+        for (Lease lease; (lease = scheduled.poll()) != null; ) {
+            place(lease, System.nanoTime());
+        }
+
+        var slot = wheel.get((int) (current % SLOTS));
+        var now = System.nanoTime();
+        // leases put back in this slot are only looked at on the next turn
+        for (int i = slot.size(); i > 0; i--) {
+            var lease = slot.poll();
+            if (lease.isReleased()) {
+                continue;
+            }
+            if (lease.remaining(now) > 0) {
+                place(lease, now);
+                continue;
+            }
+
+            expire.accept(lease);
+        }
+    }
+
+    // a suspended lease is looked at again one duration on, the earliest it can run out once renewed
+    private void place(Lease lease, long now) {
+        var remaining = lease.remaining(now);
+        if (remaining == Long.MAX_VALUE) {
+            remaining = lease.getDuration();
+        }
+        var ticks = Math.min(SLOTS, Math.max(1, (remaining + tick - 1) / tick));
+        wheel.get((int) ((current + ticks) % SLOTS)).add(lease);
+    }
+}
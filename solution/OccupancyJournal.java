@@ -0,0 +1,305 @@
+package cp2022.solution;
+
+import cp2022.base.Workplace;
+import cp2022.base.WorkplaceId;
+import cp2022.solution.OrderlyWorkplace.Access;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ * Ownership and queue transitions of a workshop, appended to a memory-mapped file
+ * so that they outlive the process. Generations alternate between two journal
+ * files. Once one is full, appends go on in the other under the next generation,
+ * and a copy of the live state at that point is written out as a snapshot on a
+ * background thread. A snapshot is just a journal holding one record per occupant.
+ * Recovery replays the newest snapshot, then the journal of its generation, then
+ * the journal of the next generation if the process went down before that
+ * generation's snapshot was in place. So it takes time proportional to the live
+ * state plus at most two journals.
+ *
+ * Workplaces are recorded by their position in WorkplaceId order, so a workshop
+ * must be restarted with the same workplaces. Records are written through the
+ * page cache: they survive the process, but not the machine, going down.
+ * Not thread safe, the workshop calls it under its mutex.
+ */
+public class OccupancyJournal {
+    public record Entry(long uid, WorkplaceId wid, Access access) {
+    }
+
+    private record Occupancy(long uid, int workplace) {
+    }
+
+    // the live state as a journal is switched, written out by the snapshot thread
+    private record Image(int generation, long clock, long[] uids, int[] workplaces, byte[] access) {
+    }
+
+    private static final int MAGIC = 0x63703232;
+    // magic, generation, workplaces, clock
+    private static final int HEADER = 24;
+    // generation, type, access, workplace, uid, time
+    private static final int RECORD = 32;
+    private static final byte OCCUPY = 1;
+    private static final byte VACATE = 2;
+    private static final byte QUEUE = 3;
+
+    private final Path snapshotPath;
+    private final List<WorkplaceId> ids = new ArrayList<>();
+    private final HashMap<WorkplaceId, Integer> indices = new HashMap<>();
+    private final int capacity;
+    private final HashMap<Occupancy, Access> live = new HashMap<>();
+    // workers waiting in the queue, by the workplace they are after
+    private final HashMap<Long, Integer> queued = new HashMap<>();
+    // generation g is appended to journals[g % 2]
+    private final MappedByteBuffer[] journals = new MappedByteBuffer[2];
+    private int generation = 0;
+    private int next = 0;
+    private long clock = -1;
+    private volatile long snapshots = 0;
+    private volatile Thread writer = null;
+    private volatile IOException failure = null;
+
+    public OccupancyJournal(Path directory, Collection<Workplace> workplaces, int capacity) {
+        this.capacity = capacity;
+        snapshotPath = directory.resolve("snapshot");
+        for (var workplace : workplaces) {
+            ids.add(workplace.getId());
+        }
+        ids.sort(Comparator.naturalOrder());
+        for (int i = 0; i < ids.size(); i++) {
+            indices.put(ids.get(i), i);
+        }
+
+        try {
+            Files.createDirectories(directory);
+            for (int i = 0; i < journals.length; i++) {
+                try (var channel = FileChannel.open(directory.resolve("journal." + i),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    journals[i] = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * RECORD);
+                }
+            }
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void recover() throws IOException {
+        if (Files.exists(snapshotPath)) {
+            try (var channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                var snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                generation = checkHeader(snapshot);
+                clock = snapshot.getLong(16);
+                replay(snapshot, (int) ((channel.size() - HEADER) / RECORD));
+            }
+        }
+
+        var current = journals[generation % 2];
+        next = isOf(current, generation) ? replay(current, capacity) : 0;
+        if (next == 0) {
+            writeHeader(current, generation, clock);
+        }
+        var following = journals[(generation + 1) % 2];
+        if (isOf(following, generation + 1)) {
+            // the process went down before the snapshot of the following generation was in place;
+            // it is written now, before the journal of this generation can be reused
+            generation++;
+            writeSnapshot(capture());
+            next = replay(following, capacity);
+        }
+
+        // queued workers waited in threads that are gone
+        queued.clear();
+    }
+
+    private boolean isOf(MappedByteBuffer journal, int generation) {
+        return journal.getInt(0) != 0 && checkHeader(journal) == generation;
+    }
+
+    private int checkHeader(MappedByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalStateException("not an occupancy journal");
+        }
+        if (buffer.getInt(8) != ids.size()) {
+            throw new IllegalStateException(String.format("journal of %d workplaces, not %d", buffer.getInt(8), ids.size()));
+        }
+
+        return buffer.getInt(4);
+    }
+
+    private void writeHeader(MappedByteBuffer buffer, int generation, long clock) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, generation);
+        buffer.putInt(8, ids.size());
+        buffer.putLong(16, clock);
+    }
+
+    // Returns the number of records of the current generation, which end the journal.
+    private int replay(MappedByteBuffer buffer, int records) {
+        int count = 0;
+        for (; count < records; count++) {
+            int at = HEADER + count * RECORD;
+            var type = buffer.get(at + 4);
+            if (buffer.getInt(at) != generation || type == 0) {
+                break;
+            }
+            apply(type, buffer.getLong(at + 12), buffer.getInt(at + 8), Access.values()[buffer.get(at + 5)], buffer.getLong(at + 20));
+        }
+
+        return count;
+    }
+
+    private void apply(byte type, long uid, int workplace, Access access, long time) {
+        switch (type) {
+            case OCCUPY -> {
+                live.put(new Occupancy(uid, workplace), access);
+                queued.remove(uid);
+            }
+            case VACATE -> live.remove(new Occupancy(uid, workplace));
+            case QUEUE -> queued.put(uid, workplace);
+            default -> throw new IllegalStateException("corrupt journal record " + type);
+        }
+        clock = Math.max(clock, time);
+    }
+
+    public void occupy(long uid, WorkplaceId wid, Access access, long time) {
+        append(OCCUPY, uid, indices.get(wid), access, time);
+    }
+
+    public void vacate(long uid, WorkplaceId wid, long time) {
+        append(VACATE, uid, indices.get(wid), Access.Shared, time);
+    }
+
+    public void queue(long uid, WorkplaceId wid, long time) {
+        append(QUEUE, uid, indices.get(wid), Access.Shared, time);
+    }
+
+    private void append(byte type, long uid, int workplace, Access access, long time) {
+        if (next == capacity) {
+            switchJournals();
+        }
+
+        apply(type, uid, workplace, access, time);
+        write(journals[generation % 2], next++, generation, type, uid, workplace, access, time);
+    }
+
+    private static void write(MappedByteBuffer buffer, int index, int generation, byte type, long uid, int workplace, Access access, long time) {
+        int at = HEADER + index * RECORD;
+        buffer.put(at + 4, type);
+        buffer.put(at + 5, (byte) access.ordinal());
+        buffer.putInt(at + 8, workplace);
+        buffer.putLong(at + 12, uid);
+        buffer.putLong(at + 20, time);
+        // stamped last: until then the record belongs to an older generation and ends the replay
+        buffer.putInt(at, generation);
+    }
+
+    // Goes on in the other journal under the next generation and has the live state written out
+    // in the background. Under the mutex this only copies the live state, unless the previous
+    // snapshot is still being written: the other journal holds the generation it stands for, so
+    // we wait for it, which only happens if a journal fills faster than a snapshot is written.
+    private void switchJournals() {
+        awaitSnapshot();
+        generation++;
+        next = 0;
+        writeHeader(journals[generation % 2], generation, clock);
+        var image = capture();
+        var thread = new Thread(() -> {
+            try {
+                writeSnapshot(image);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }, "workshop-snapshot");
+        thread.setDaemon(true);
+        writer = thread;
+        thread.start();
+    }
+
+    private Image capture() {
+        var uids = new long[live.size()];
+        var workplaces = new int[live.size()];
+        var access = new byte[live.size()];
+        int index = 0;
+        for (var entry : live.entrySet()) {
+            uids[index] = entry.getKey().uid();
+            workplaces[index] = entry.getKey().workplace();
+            access[index++] = (byte) entry.getValue().ordinal();
+        }
+
+        return new Image(generation, clock, uids, workplaces, access);
+    }
+
+    // Runs off the mutex, it only touches the image and the files.
+    private void writeSnapshot(Image image) throws IOException {
+        var temporary = snapshotPath.resolveSibling("snapshot.tmp");
+        Files.deleteIfExists(temporary);
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var snapshot = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) image.uids().length * RECORD);
+            writeHeader(snapshot, image.generation(), image.clock());
+            for (int i = 0; i < image.uids().length; i++) {
+                write(snapshot, i, image.generation(), OCCUPY, image.uids()[i], image.workplaces()[i],
+                        Access.values()[image.access()[i]], image.clock());
+            }
+            snapshot.force();
+        }
+        Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshots++;
+    }
+
+    // Waits for the snapshot being written in the background, if any. A host that drops a
+    // workshop to start another on the same directory in the same process calls it first.
+    public void awaitSnapshot() {
+        var thread = writer;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                ErrorHandling.panic();
+            }
+            writer = null;
+        }
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    // every worker's workplaces as of the last record, in WorkplaceId order
+    public List<Entry> getOccupancy() {
+        var occupancy = new ArrayList<Occupancy>(live.keySet());
+        occupancy.sort(Comparator.comparingLong(Occupancy::uid).thenComparingInt(Occupancy::workplace));
+        var entries = new ArrayList<Entry>(occupancy.size());
+        for (var occupant : occupancy) {
+            entries.add(new Entry(occupant.uid(), ids.get(occupant.workplace()), live.get(occupant)));
+        }
+
+        return entries;
+    }
+
+    // workers queued in this process; those of an earlier one are dropped on recovery
+    public int getQueued() {
+        return queued.size();
+    }
+
+    // the latest logical time recorded, -1 for a new journal
+    public long getClock() {
+        return clock;
+    }
+
+    public long getSnapshots() {
+        return snapshots;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(generation: %d, records: %d/%d, occupants: %d, queued: %d, snapshots: %d)",
+                generation, next, capacity, live.size(), queued.size(), snapshots);
+    }
+}
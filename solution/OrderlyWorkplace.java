@@ -2,19 +2,45 @@ package cp2022.solution;
 
 import cp2022.base.Workplace;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 
 public class OrderlyWorkplace extends Workplace {
+    private record Waiter(Semaphore delay, Access access) {
+    }
+
+    private static class Occupant {
+        private final Access access;
+        // set when the workplace was rotated to us as part of a cycle, counted down by every member on its way out of switchTo
+        private final CountDownLatch handover;
+        private volatile WorkplaceState state = WorkplaceState.Before;
+
+        public Occupant(Access access, CountDownLatch handover) {
+            this.access = access;
+            this.handover = handover;
+        }
+    }
+
     private final Semaphore ownership = new Semaphore(1, true);
-    private final Semaphore delay = new Semaphore(0, true);
+    // one semaphore per waiter, so that a single waiter can be called off
+    private final ConcurrentLinkedDeque<Waiter> waiters = new ConcurrentLinkedDeque<>();
+    // switchers held back behind an overdue crew: not signalled, and not counted as awaiting, until it is in
+    private final ConcurrentLinkedDeque<Waiter> deferred = new ConcurrentLinkedDeque<>();
     private final Semaphore mutex = new Semaphore(1, true);
-    private CountDownLatch latch, doneLatch, useLatch;
-    private int awaiting = 0;
-    // state
-    private WorkplaceState state = WorkplaceState.Empty;
-    private long userId = 0;
+    // state, changed under the workshop mutex and read by the occupants in use() as well
+    private final ConcurrentHashMap<Long, Occupant> occupants = new ConcurrentHashMap<>();
+    private Crew reservation = null;
     private final Workplace internalWorkplace;
+    private final UseEstimates estimates;
+    private final SchedulingMetrics metrics;
+    private boolean logging = true;
+    // the workshop's leases by worker, null when it does not hand out any
+    private Map<Long, Lease> leases = null;
     // private final SemaphoreQueue queue;
     // private Semaphore mutex = new Semaphore(1, true);
 
@@ -22,117 +48,261 @@ public class OrderlyWorkplace extends Workplace {
         Empty, Before, Done
     }
 
+    // Shared takes one place out of getCapacity(), Exclusive the whole workplace.
+    // With a capacity of one both are the same.
+    public enum Access {
+        Shared, Exclusive
+    }
+
+    // Before while anybody has yet to use the workplace
     public WorkplaceState getState() {
+        var state = WorkplaceState.Empty;
+        for (var occupant : occupants.values()) {
+            state = occupant.state;
+            if (state == WorkplaceState.Before) {
+                break;
+            }
+        }
+
         return state;
     }
 
     public OrderlyWorkplace(Workplace workplace) {
-        super(workplace.getId());
+        this(workplace, null, null);
+    }
+
+    public OrderlyWorkplace(Workplace workplace, UseEstimates estimates, SchedulingMetrics metrics) {
+        super(workplace.getId(), workplace.getCapacity());
         internalWorkplace = workplace;
+        this.estimates = estimates;
+        this.metrics = metrics;
+    }
+
+    public void setLogging(boolean logging) {
+        this.logging = logging;
+    }
+
+    public void setLeases(Map<Long, Lease> leases) {
+        this.leases = leases;
     }
 
     public boolean isEmpty() {
-        return state == WorkplaceState.Empty;
+        return occupants.isEmpty();
+    }
+
+    public boolean isShared() {
+        return getCapacity() > 1;
+    }
+
+    public boolean hasRoom(Access access) {
+        if (access == Access.Exclusive || isEmpty()) {
+            return isEmpty();
+        }
+
+        return occupants.size() < getCapacity() && !isHeldExclusively();
+    }
+
+    // whether there would be room for the access if the given occupant moved out: a cycle may run through it
+    public boolean hasRoomWithout(long uid, Access access) {
+        if (!occupants.containsKey(uid)) {
+            return false;
+        }
+        if (access == Access.Exclusive || occupants.get(uid).access == Access.Exclusive) {
+            return occupants.size() == 1;
+        }
+
+        return !isHeldExclusively();
+    }
+
+    private boolean isHeldExclusively() {
+        for (var occupant : occupants.values()) {
+            if (occupant.access == Access.Exclusive) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public boolean isUsedBy(long uid) {
+        return occupants.containsKey(uid);
+    }
+
+    public Collection<Long> getUserIds() {
+        return new ArrayList<>(occupants.keySet());
     }
 
     public boolean isAwaited() {
-        return awaiting > 0;
+        return !waiters.isEmpty();
+    }
+
+    // whether the first waiter in line fits: nobody behind it is let in first
+    public boolean canSignal() {
+        var waiter = waiters.peek();
+        return waiter != null && hasRoom(waiter.access());
+    }
+
+    // held for a crew: new entrants wait, workers already inside may still switch in
+    public boolean isReserved() {
+        return reservation != null;
+    }
+
+    public Crew getReservation() {
+        return reservation;
+    }
+
+    // Lifting the reservation, once the crew is in, lines up the workers deferred behind it.
+    public void reserve(Crew crew) {
+        reservation = crew;
+        if (crew == null) {
+            for (Waiter waiter; (waiter = deferred.poll()) != null; ) {
+                waiters.add(waiter);
+            }
+        }
     }
 
     public void await(Semaphore foreignMutex) throws InterruptedException {
-        mutex.acquire();
-        awaiting++;
-        mutex.release();
+        await(foreignMutex, new Semaphore(0), Access.Shared);
+    }
+
+    public void await(Semaphore foreignMutex, Access access) throws InterruptedException {
+        await(foreignMutex, new Semaphore(0), access);
+    }
+
+    public void await(Semaphore foreignMutex, Semaphore delay, Access access) throws InterruptedException {
+        waiters.add(new Waiter(delay, access));
 
         foreignMutex.release();
         delay.acquire();
-
-        mutex.acquire();
-        awaiting--;
-        mutex.release();
     }
 
-    public void signal() {
-        delay.release();
-    }
+    // Hands the critical section on to whoever handOff picks, possibly this very waiter, instead of releasing it.
+    public void await(Runnable handOff, Semaphore delay, Access access) throws InterruptedException {
+        waiters.add(new Waiter(delay, access));
 
-    public int getAwaiting() {
-        return awaiting;
+        handOff.run();
+        delay.acquire();
     }
 
-    public void giveLatch(CountDownLatch l, CountDownLatch dl, CountDownLatch ul) throws InterruptedException {
-        mutex.acquire();
-        latch = l;
-        doneLatch = dl;
-        useLatch = ul;
-        mutex.release();
+    public void awaitDeferred(Semaphore foreignMutex, Semaphore delay, Access access) throws InterruptedException {
+        deferred.add(new Waiter(delay, access));
+
+        foreignMutex.release();
+        delay.acquire();
     }
 
-    public void awaitLatch() throws InterruptedException {
-        latch.countDown();
-        System.out.printf("awaitingLatch[%s]: casc: %s, done: %s\n", Identification.uid(), latch.getCount(), doneLatch.getCount());
-        latch.await();
+    // lines a deferred waiter up with the others, as if the reservation had been lifted for it
+    public boolean promote(Semaphore delay) {
+        for (var waiter : deferred) {
+            if (waiter.delay() == delay) {
+                deferred.remove(waiter);
+                waiters.add(waiter);
+                return true;
+            }
+        }
+
+        return false;
     }
 
-    public boolean hasLatch() {
-        return latch != null && latch.getCount() > 0;
+    public void signal() {
+        var waiter = waiters.poll();
+        if (waiter != null) {
+            waiter.delay().release();
+        }
     }
 
-    public void awaitDoneLatch() throws InterruptedException {
-        doneLatch.await();
+    // wakes the given waiter without passing it the critical section
+    public boolean cancel(Semaphore delay) {
+        if (waiters.removeIf(waiter -> waiter.delay() == delay) || deferred.removeIf(waiter -> waiter.delay() == delay)) {
+            delay.release();
+            return true;
+        }
+
+        return false;
     }
 
-    public void bumpDoneLatch() throws InterruptedException {
-        doneLatch.countDown();
+    public int getAwaiting() {
+        return waiters.size();
     }
 
     public void log(StringBuilder builder) {
         builder.append(
-                String.format("%s (%s) -> %s (awaiting: %d, delay: %s, mutex: %s)\n",
-                        getId(), getState(), getUserId(), getAwaiting(), delay.availablePermits(), mutex.availablePermits() )
+                String.format("%s (%s) -> %s (capacity: %s, awaiting: %d, mutex: %s, reserved: %s)\n",
+                        getId(), getState(), occupants.keySet(), getCapacity(), getAwaiting(), mutex.availablePermits(), isReserved())
         );
     }
 
     public void occupy() throws InterruptedException {
+        occupy(Thread.currentThread().getId());
+    }
+
+    public void occupy(long uid) throws InterruptedException {
+        occupy(uid, Access.Shared, null);
+    }
+
+    public void occupy(long uid, Access access) throws InterruptedException {
+        occupy(uid, access, null);
+    }
+
+    public void occupy(long uid, Access access, CountDownLatch handover) throws InterruptedException {
         mutex.acquire();
-        userId = Thread.currentThread().getId();
-        state = WorkplaceState.Before;
+        occupants.put(uid, new Occupant(access, handover));
         mutex.release();
     }
 
+    // nothing is held while using it, shared workplaces are used concurrently
     @Override
     public void use() {
         try {
-            mutex.acquire();
-            if (useLatch != null) {
-                useLatch.countDown();
-                useLatch.await();
+            var uid = Identification.uid();
+            var occupant = occupants.get(uid);
+            // the previous occupant may still be on its way out of switchTo
+            if (occupant != null && occupant.handover != null) {
+                occupant.handover.await();
+            }
+            // a lease does not run out during use() and starts over afterwards
+            var lease = leases != null ? leases.get(uid) : null;
+            if (leases != null && (occupant == null || lease == null || !lease.suspend())) {
+                throw new IllegalStateException(String.format("worker %d does not hold workplace %s, its lease may have expired", uid, getId()));
             }
 //            ownership.acquire();
-            internalWorkplace.use();
-            state = WorkplaceState.Done;
-            var b = new StringBuilder();
-            log(b);
-            System.out.println("use: " + b.toString());
-            mutex.release();
+            // a worker that dies in use() must not keep its lease suspended, or it is never revoked
+            try {
+                var start = System.nanoTime();
+                internalWorkplace.use();
+                var nanos = System.nanoTime() - start;
+                if (estimates != null) {
+                    estimates.record(uid, getId(), nanos);
+                }
+                if (metrics != null) {
+                    metrics.recordUse(nanos);
+                }
+            } finally {
+                if (occupant != null) {
+                    occupant.state = WorkplaceState.Done;
+                }
+                if (lease != null) {
+                    lease.renew();
+                }
+            }
+            if (logging) {
+                var b = new StringBuilder();
+                log(b);
+                System.out.println("use: " + b.toString());
+            }
         } catch (InterruptedException e) {
             ErrorHandling.panic();
         }
     }
 
-    public void leave() {
+    public void leave(long uid) {
         try {
             mutex.acquire();
-            userId = 0;
-            state = WorkplaceState.Empty;
+            occupants.remove(uid);
 //            ownership.release();
             mutex.release();
         } catch (InterruptedException e) {
             ErrorHandling.panic();
         }
     }
-
-    public long getUserId() {
-        return userId;
-    }
 }
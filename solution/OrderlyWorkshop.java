@@ -3,22 +3,26 @@ package cp2022.solution;
 import cp2022.base.Workplace;
 import cp2022.base.WorkplaceId;
 import cp2022.base.Workshop;
+import cp2022.solution.OrderlyWorkplace.Access;
 
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 
-public class OrderlyWorkshop implements Workshop {
+public class OrderlyWorkshop implements Workshop, AutoCloseable {
     private static class WorkplaceMap {
         private final ConcurrentHashMap<WorkplaceId, OrderlyWorkplace> workplaces;
         private final ConcurrentHashMap<Long, WorkplaceId> users;
 
-        public WorkplaceMap(Collection<Workplace> workplaces, SemaphoreQueue queue) {
+        public WorkplaceMap(Collection<Workplace> workplaces, UseEstimates estimates, SchedulingMetrics metrics, boolean logging) {
             this.workplaces = new ConcurrentHashMap<>(workplaces.size());
 
             for (var workplace : workplaces) {
-                this.workplaces.put(workplace.getId(), new OrderlyWorkplace(workplace));
+                var orderly = new OrderlyWorkplace(workplace, estimates, metrics);
+                orderly.setLogging(logging);
+                this.workplaces.put(workplace.getId(), orderly);
             }
 
             this.users = new ConcurrentHashMap<>();
@@ -31,7 +35,7 @@ public class OrderlyWorkshop implements Workshop {
             }
 
             var workplace = workplaces.get(wid);
-            if (workplace.getUserId() != uid) {
+            if (!workplace.isUsedBy(uid)) {
                 users.remove(uid);
                 return null;
             }
@@ -43,9 +47,19 @@ public class OrderlyWorkshop implements Workshop {
             return workplaces.get(wid);
         }
 
-        public synchronized void updateMapping(OrderlyWorkplace workplace) {
-            if (workplace.getState() != OrderlyWorkplace.WorkplaceState.Empty) {
-                users.put(workplace.getUserId(), workplace.getId());
+        public synchronized void updateMapping(long uid, OrderlyWorkplace workplace) {
+            if (workplace.isUsedBy(uid)) {
+                users.put(uid, workplace.getId());
+            }
+        }
+
+        public synchronized void removeMapping(long uid) {
+            users.remove(uid);
+        }
+
+        public void setLeases(Map<Long, Lease> leases) {
+            for (var workplace : workplaces.values()) {
+                workplace.setLeases(leases);
             }
         }
 
@@ -57,78 +71,235 @@ public class OrderlyWorkshop implements Workshop {
         }
     }
 
+    // Wait-for graph: a waiting worker points at the workplace it waits for, and that workplace
+    // at whoever holds it. Keyed by worker, as several workers may share the workplace they wait from.
     private static class Requests {
         public static class Edge {
-            private final WorkplaceId from;
+            private final long uid;
             private final WorkplaceId to;
+            private final Access access;
+            // waiting behind the crew the workplace is reserved for
+            private final boolean deferred;
 
-            public Edge(WorkplaceId f, WorkplaceId t) {
-                from = f;
+            public Edge(long u, WorkplaceId t, Access a, boolean d) {
+                uid = u;
                 to = t;
+                access = a;
+                deferred = d;
             }
 
-            public WorkplaceId getFrom() {
-                return from;
+            public long getUid() {
+                return uid;
             }
 
             public WorkplaceId getTo() {
                 return to;
             }
+
+            public Access getAccess() {
+                return access;
+            }
+
+            public boolean isDeferred() {
+                return deferred;
+            }
         }
 
-        private final ConcurrentHashMap<WorkplaceId, WorkplaceId> matrix;
+        private final ConcurrentHashMap<Long, Edge> matrix;
+        private final WorkplaceMap workplaces;
 
-        public Requests(long n) {
+        public Requests(long n, WorkplaceMap workplaces) {
             matrix = new ConcurrentHashMap<>((int) n);
+            this.workplaces = workplaces;
         }
 
-        public Edge add(WorkplaceId from, WorkplaceId to) {
-            matrix.put(from, to);
+        public Edge add(long uid, WorkplaceId to, Access access) {
+            return add(uid, to, access, false);
+        }
 
-            return new Edge(from, to);
+        public Edge add(long uid, WorkplaceId to, Access access, boolean deferred) {
+            var e = new Edge(uid, to, access, deferred);
+            matrix.put(uid, e);
+
+            return e;
         }
 
         public void remove(Edge e) {
-            matrix.remove(e.getFrom());
-            // matrix.remove(e.getFrom(), e.getTo());
+            matrix.remove(e.getUid());
         }
 
-        // Cycle := getCycle(e)
-        public Set<WorkplaceId> getCycle(Edge e) {
-            var seenNodes = new HashSet<WorkplaceId>();
-            var currentNode = e.getTo();
+        public Edge get(long uid) {
+            return matrix.get(uid);
+        }
 
-            while (matrix.containsKey(currentNode)) {
-                if (seenNodes.contains(currentNode)) {
-                    break;
+        // Cycle := getCycle(e): the workers, starting with e's, each of which moves into the place of the next one.
+        // A hop only goes through a holder whose leaving makes room for the request, so a partially occupied
+        // workplace takes part through any one of its holders. An exclusive request on a workplace with
+        // several holders has no such hop: it is never rotated and waits for all of them to leave.
+        // A worker deferred behind a crew waits for every workplace of the crew to be vacated, so a hop
+        // goes through any holder of those workplaces. Such a cycle is not rotated, see promoteDeferred.
+        public List<Long> getCycle(Edge e) {
+            var cycle = new ArrayList<Long>();
+            cycle.add(e.getUid());
+
+            return follow(e.getUid(), e, cycle, new HashSet<>()) ? cycle : null;
+        }
+
+        private boolean follow(long origin, Edge e, List<Long> path, Set<Long> seen) {
+            var target = workplaces.get(e.getTo());
+            var crew = e.isDeferred() ? target.getReservation() : null;
+            var holders = new ArrayList<Long>();
+            if (crew != null) {
+                for (var wid : crew.getWorkplaces()) {
+                    holders.addAll(workplaces.get(wid).getUserIds());
                 }
+            } else {
+                holders.addAll(target.getUserIds());
+            }
 
-                seenNodes.add(currentNode);
-                currentNode = matrix.get(currentNode);
+            for (long holder : holders) {
+                if (crew == null && !target.hasRoomWithout(holder, e.getAccess())) {
+                    continue;
+                }
+                if (holder == origin) {
+                    return true;
+                }
+
+                var next = matrix.get(holder);
+                if (next == null || !seen.add(holder)) {
+                    continue;
+                }
+                path.add(holder);
+                if (follow(origin, next, path, seen)) {
+                    return true;
+                }
+                path.remove(path.size() - 1);
             }
 
-            return seenNodes.contains(e.getFrom()) ? seenNodes : null;
+            return false;
         }
     }
 
+    private static class Switching {
+        private final Semaphore delay = new Semaphore(0);
+        // set, before the delay is released, when the worker was moved as part of a cycle
+        private CountDownLatch handover = null;
+    }
+
+    private static class Holding {
+        // ordered by WorkplaceId.compareTo, which is the order we acquire in
+        private final TreeSet<WorkplaceId> held = new TreeSet<>();
+        private final Semaphore delay = new Semaphore(0);
+        private OrderlyWorkplace awaited = null;
+        private boolean aborted = false;
+    }
+
     private final SemaphoreQueue queue;
     private final Requests requests;
     private final WorkplaceMap workplaces;
     private final Semaphore mutex = new Semaphore(1, true);
+    private final WorkshopEventPublisher events;
+    // null unless the scheduling policy uses them
+    private final UseEstimates estimates;
+    private final SchedulingMetrics metrics;
+    private final ArrayDeque<Crew> crews = new ArrayDeque<>();
+    private final HashMap<Long, Holding> holdings = new HashMap<>();
+    // switching workers waiting on their target
+    private final HashMap<Long, Switching> switching = new HashMap<>();
+    // shared workplaces someone waits on
+    private final LinkedHashSet<OrderlyWorkplace> vacancies = new LinkedHashSet<>();
+    // by worker, changed under the mutex; null unless the config asks for leases
+    private final ConcurrentHashMap<Long, Lease> leases;
+    private final LeaseWheel wheel;
+    private final long leaseNanos;
+    private final OccupancyJournal journal;
 
     private long currentTime = 0;
     private final long n;
+    private final boolean logging;
 
     public OrderlyWorkshop(Collection<Workplace> workplaces) {
-        queue = new SemaphoreQueue(workplaces.size() * 2);
-        this.workplaces = new WorkplaceMap(workplaces, queue);
+        this(workplaces, WorkshopConfig.fromSystemProperties());
+    }
+
+    public OrderlyWorkshop(Collection<Workplace> workplaces, WorkshopConfig config) {
         n = workplaces.size();
-        requests = new Requests(n);
+        logging = config.isLogging();
+        metrics = new SchedulingMetrics(workplaces.size());
+        estimates = config.getScheduling() == SemaphoreQueue.Policy.ShortestExpectedUse ? new UseEstimates() : null;
+        queue = new SemaphoreQueue(workplaces.size() * 2, config.getScheduling(), estimates, metrics, 2*n - 1);
+        queue.setLogging(logging);
+        this.workplaces = new WorkplaceMap(workplaces, estimates, metrics, logging);
+        requests = new Requests(n, this.workplaces);
+        this.events = config.getEvents() != null ? config.getEvents() : new WorkshopEventPublisher();
+
+        if (config.hasLeases()) {
+            leases = new ConcurrentHashMap<>();
+            leaseNanos = config.getLeaseMillis() * 1_000_000;
+            this.workplaces.setLeases(leases);
+            wheel = new LeaseWheel(config.getLeaseTickMillis() * 1_000_000, this::expire);
+        } else {
+            leases = null;
+            leaseNanos = 0;
+            wheel = null;
+        }
+
+        if (config.getJournalDirectory() != null) {
+            journal = new OccupancyJournal(Path.of(config.getJournalDirectory()), workplaces, config.getJournalRecords());
+            restore();
+        } else {
+            journal = null;
+        }
+    }
+
+    // Takes over the occupancy recorded by an earlier workshop. Its queued workers waited in threads
+    // that are gone, so they are not brought back: they call enter again and queue up anew.
+    private void restore() {
+        try {
+            currentTime = journal.getClock() + 1;
+            for (var entry : journal.getOccupancy()) {
+                var workplace = workplaces.get(entry.wid());
+                workplace.occupy(entry.uid(), entry.access());
+                // entries come in WorkplaceId order, so a holder ends up mapped to its last workplace as after acquire
+                workplaces.updateMapping(entry.uid(), workplace);
+                holdings.computeIfAbsent(entry.uid(), uid -> new Holding()).held.add(entry.wid());
+                renewLease(entry.uid());
+            }
+            holdings.values().removeIf(holding -> holding.held.size() == 1);
+        } catch (InterruptedException e) {
+            ErrorHandling.panic();
+        }
+    }
+
+    // Stops the lease wheel and waits for a snapshot still being written. Workers may go on
+    // using the workshop, but leases no longer expire.
+    @Override
+    public void close() {
+        if (wheel != null) {
+            wheel.close();
+        }
+        if (journal != null) {
+            journal.awaitSnapshot();
+        }
+    }
+
+    // subscribe with events().subscribe(subscriber, capacity, policy) to pick a backpressure policy
+    public WorkshopEventPublisher events() {
+        return events;
+    }
+
+    // null unless the config names a journal directory
+    public OccupancyJournal journal() {
+        return journal;
+    }
+
+    // compare runs with -Dcp2022.scheduling=TimeOrder and -Dcp2022.scheduling=ShortestExpectedUse, see WorkshopConfig
+    public SchedulingMetrics metrics() {
+        return metrics;
     }
 
     private void logState(String label) {
-        final boolean doLog = true;
-        if (!doLog) {
+        if (!logging) {
             return;
         }
         var builder = new StringBuilder();
@@ -142,33 +313,277 @@ public class OrderlyWorkshop implements Workshop {
     }
 
 
+    // The journal is written under the mutex, right after the transition it records.
+    private void recordOccupy(long uid, OrderlyWorkplace workplace, Access access) {
+        if (journal != null) {
+            journal.occupy(uid, workplace.getId(), access, currentTime);
+        }
+    }
+
+    private void recordVacate(long uid, OrderlyWorkplace workplace) {
+        if (journal != null) {
+            journal.vacate(uid, workplace.getId(), currentTime);
+        }
+    }
+
+    private void recordQueue(long uid, WorkplaceId wid) {
+        if (journal != null) {
+            journal.queue(uid, wid, currentTime);
+        }
+    }
+
+    // Restored occupants go by the ids their workers assumed, which a plain thread id could
+    // collide with, so with a journal every worker has to go by an assumed id. Called before
+    // taking the mutex.
+    private long workerUid() {
+        if (journal != null && !Identification.isAssumed()) {
+            throw new IllegalStateException("a workshop with a journal needs workers with an id from Identification.assume()");
+        }
+        return Identification.uid();
+    }
+
+    // Called with the mutex held whenever a worker is granted a workplace.
+    private void renewLease(long uid) {
+        if (leases == null) {
+            return;
+        }
+
+        var lease = leases.get(uid);
+        if (lease == null) {
+            lease = new Lease(uid, leaseNanos);
+            leases.put(uid, lease);
+            wheel.schedule(lease);
+        }
+        lease.renew();
+    }
+
+    // A worker waiting in the workshop is not the one keeping its workplaces from the others.
+    private void suspendLease(long uid) {
+        var lease = leases != null ? leases.get(uid) : null;
+        if (lease != null) {
+            lease.suspend();
+        }
+    }
+
+    private void releaseLease(long uid) {
+        var lease = leases != null ? leases.remove(uid) : null;
+        if (lease != null) {
+            lease.release();
+        }
+    }
+
+    // Keeps the workplaces of the calling worker for another lease duration; use() does the same.
+    public void renew() {
+        if (leases == null) {
+            return;
+        }
+        var lease = leases.get(workerUid());
+        // a revoked lease is no longer in leases
+        if (lease == null || !lease.renew()) {
+            throw new IllegalStateException("renew outside the workshop, or after the lease expired");
+        }
+    }
+
+    // Runs on the lease wheel. The worker has stopped renewing, so we leave in its name: its
+    // workplaces go to whoever waits next and its edge, if any, is dropped from requests.
+    private void expire(Lease lease) {
+        try {
+            mutex.acquire();
+            var uid = lease.getUid();
+            if (leases.get(uid) != lease) {
+                mutex.release();
+                return;
+            }
+            if (!lease.revokeIfExpired(System.nanoTime())) {
+                // renewed or suspended since the wheel found it expired: it goes back on the wheel
+                wheel.schedule(lease);
+                mutex.release();
+                return;
+            }
+
+            leases.remove(uid);
+            metrics.recordRevocation();
+            logState(String.format("expire[%s]", uid));
+            var e = requests.get(uid);
+            if (e != null) {
+                requests.remove(e);
+            }
+            switching.remove(uid);
+            leave(uid);
+        } catch (InterruptedException e) {
+            ErrorHandling.panic();
+        }
+    }
+
     private boolean shouldWait(long myTime) {
         return !queue.isEmpty() && Math.abs(myTime - queue.minTime()) >= 2*n - 1;
     }
 
+    // Called with the mutex held, which is released and passed back to us by whoever signals the workplace.
+    private void awaitWorkplace(OrderlyWorkplace workplace, Semaphore delay, Access access) throws InterruptedException {
+        awaitWorkplace(workplace, delay, access, false);
+    }
+
+    // With passingOn, the mutex goes to a waiter that was left with room, if any, rather than back to the mutex.
+    private void awaitWorkplace(OrderlyWorkplace workplace, Semaphore delay, Access access, boolean passingOn) throws InterruptedException {
+        if (workplace.isShared()) {
+            vacancies.add(workplace);
+        }
+        if (passingOn) {
+            workplace.await(this::passOn, delay, access);
+        } else {
+            workplace.await(mutex, delay, access);
+        }
+    }
+
+    // A crew past the 2n-1 bound has its workplaces drained: workers from outside them wait behind it.
+    private boolean isOverdue(OrderlyWorkplace workplace, long time) {
+        return workplace.isReserved() && time - workplace.getReservation().getTime() >= 2*n - 1;
+    }
+
+    // A cycle through workers deferred behind a crew runs through the crew, which no rotation can move:
+    // they are lined up with the ordinary waiters of their workplaces instead, which takes the crew out.
+    // A workplace left with room for them is handed on by passOn. Returns whether anybody was lined up.
+    private boolean promoteDeferred(List<Long> cycle) {
+        boolean promoted = false;
+        for (var member : cycle) {
+            var e = requests.get(member);
+            if (e == null || !e.isDeferred()) {
+                continue;
+            }
+
+            var workplace = workplaces.get(e.getTo());
+            workplace.promote(switching.get(member).delay);
+            requests.add(member, e.getTo(), e.getAccess());
+            if (workplace.canSignal()) {
+                vacancies.add(workplace);
+            }
+            promoted = true;
+        }
+
+        return promoted;
+    }
+
+    // A departure passes the critical section to one waiter, but a shared workplace may have room
+    // for several, so whoever is done with the critical section hands it to the next one that fits.
+    private boolean signalVacancy() {
+        var it = vacancies.iterator();
+        while (it.hasNext()) {
+            var workplace = it.next();
+            if (!workplace.isAwaited()) {
+                it.remove();
+            } else if (workplace.canSignal()) {
+                workplace.signal();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Likewise for the queue: if the entrant it lets through next is headed for a shared workplace with
+    // room, it goes in now rather than waiting for somebody to leave.
+    private boolean signalQueue() {
+        if (queue.isEmpty()) {
+            return false;
+        }
+
+        var workplace = workplaces.get(queue.peekWorkplace());
+        if (!workplace.isShared() || workplace.isAwaited() || !workplace.hasRoom(Access.Shared)) {
+            return false;
+        }
+        queue.signal();
+        return true;
+    }
+
+    private void passOn() {
+        if (!signalVacancy() && !signalQueue()) {
+            mutex.release();
+        }
+    }
+
     @Override
     public Workplace enter(WorkplaceId wid) {
+        return enter(wid, Access.Shared);
+    }
+
+    public Workplace enter(WorkplaceId wid, Access access) {
+        var start = System.nanoTime();
+        var uid = workerUid();
         try {
             mutex.acquire();
             var workplace = workplaces.get(wid);
             var time = currentTime++;
 
-            if (!workplace.isEmpty() || shouldWait(time)) {
-                 logState(String.format("enter[%s->%s] queue.await(%s)", Identification.uid(), wid, time));
-                mutex.release();
-                queue.await(time, wid);
+            if (!workplace.hasRoom(access) || shouldWait(time)) {
+                 logState(String.format("enter[%s->%s] queue.await(%s)", uid, wid, time));
+                recordQueue(uid, wid);
+                queue.await(time, wid, mutex);
+            }
+
+            // whoever let us in may have vacated the last workplace a crew waited for without admitting it
+            admitCrews();
+            while (workplace.isReserved()) {
+                logState(String.format("enter[%s->%s] reserved->crew.awaitAdmission(%s)", uid, wid, time));
+                var crew = workplace.getReservation();
+                passOn();
+                crew.awaitAdmission();
+                mutex.acquire();
+                admitCrews();
+            }
+
+            if (workplace.isAwaited() || !workplace.hasRoom(access)) {
+                 logState(String.format("enter[%s->%s] workplace.await(%s)", uid, wid, time));
+                awaitWorkplace(workplace, new Semaphore(0), access);
             }
 
-            if (workplace.isAwaited() || !workplace.isEmpty()) {
-                 logState(String.format("enter[%s->%s] workplace.await(%s)", Identification.uid(), wid, time));
-                workplace.await(mutex);
+            workplace.occupy(uid, access);
+            recordOccupy(uid, workplace, access);
+            workplaces.updateMapping(uid, workplace);
+            renewLease(uid);
+            events.publish(WorkshopEvent.enter(time, uid, wid));
+             logState(String.format("enter[%s->%s] workplace occupied", uid, wid));
+            passOn();
+
+            metrics.recordWait(System.nanoTime() - start);
+            return workplace;
+        } catch (InterruptedException e) {
+            ErrorHandling.panic();
+        }
+
+        return null;
+    }
+
+    public Workplace enter(Crew crew, WorkplaceId wid) {
+        var uid = workerUid();
+        try {
+            mutex.acquire();
+            var workplace = workplaces.get(wid);
+            boolean complete;
+            try {
+                complete = crew.join(uid, wid);
+            } catch (IllegalArgumentException e) {
+                mutex.release();
+                throw e;
             }
 
-            workplace.occupy();
-            workplaces.updateMapping(workplace);
-             logState(String.format("enter[%s->%s] workplace occupied", Identification.uid(), wid));
+            if (complete) {
+                var time = currentTime++;
+                crew.setTime(time);
+
+                if (shouldWait(time)) {
+                    logState(String.format("enter_crew[%s->%s] queue.await(%s)", uid, wid, time));
+                    recordQueue(uid, wid);
+                    queue.await(time, wid, mutex);
+                }
+
+                crews.add(crew);
+                admitCrews();
+                logState(String.format("enter_crew[%s->%s] %s", uid, wid, crew));
+            }
             mutex.release();
 
+            crew.await();
             return workplace;
         } catch (InterruptedException e) {
             ErrorHandling.panic();
@@ -177,91 +592,203 @@ public class OrderlyWorkshop implements Workshop {
         return null;
     }
 
+    // Crews reserve their workplaces in time order, all or nothing, and are let in
+    // once every reserved workplace is empty. Called with the mutex held.
+    private void admitCrews() throws InterruptedException {
+        boolean admitted = true;
+        while (admitted && !crews.isEmpty()) {
+            admitted = false;
+            var blocked = new HashSet<WorkplaceId>();
+
+            for (var crew : crews) {
+                if (!crew.isReserved()) {
+                    boolean free = true;
+                    for (var wid : crew.getWorkplaces()) {
+                        free = free && !blocked.contains(wid) && !workplaces.get(wid).isReserved();
+                    }
+                    if (!free) {
+                        blocked.addAll(crew.getWorkplaces());
+                        continue;
+                    }
+                    for (var wid : crew.getWorkplaces()) {
+                        workplaces.get(wid).reserve(crew);
+                    }
+                    crew.setReserved(true);
+                }
+
+                boolean ready = true;
+                for (var wid : crew.getWorkplaces()) {
+                    var workplace = workplaces.get(wid);
+                    ready = ready && workplace.isEmpty() && !workplace.isAwaited();
+                }
+                if (ready) {
+                    for (var wid : crew.getWorkplaces()) {
+                        var workplace = workplaces.get(wid);
+                        workplace.reserve(null);
+                        workplace.occupy(crew.getMember(wid));
+                        // switchers deferred behind the crew now wait for the workplace like anybody
+                        if (workplace.canSignal()) {
+                            vacancies.add(workplace);
+                        }
+                        recordOccupy(crew.getMember(wid), workplace, Access.Shared);
+                        workplaces.updateMapping(crew.getMember(wid), workplace);
+                        renewLease(crew.getMember(wid));
+                        events.publish(WorkshopEvent.enter(crew.getTime(), crew.getMember(wid), wid));
+                    }
+                    crews.remove(crew);
+                    crew.signal();
+                    admitted = true;
+                    break;
+                }
+            }
+        }
+    }
+
 
     @Override
     public Workplace switchTo(WorkplaceId wid) {
+        return switchTo(wid, Access.Shared);
+    }
+
+    public Workplace switchTo(WorkplaceId wid, Access access) {
+        var start = System.nanoTime();
+        var uid = workerUid();
         try {
 //            logState(String.format("switch_to[%s->%s]->getting mutex", Identification.uid(), wid));
             mutex.acquire();
 //            logState(String.format("switch_to[%s->%s]->got mutex", Identification.uid(), wid));
             var workplace = workplaces.get(wid);
-            var uid = Identification.uid();
+            if (holdings.containsKey(uid)) {
+                mutex.release();
+                throw new IllegalStateException("switchTo while holding several workplaces");
+            }
             var current = workplaces.getThroughUser(uid);
-            assert current != null;
+            if (current == null) {
+                mutex.release();
+                throw new IllegalStateException("switchTo outside the workshop, or after the lease expired");
+            }
             var time = currentTime++;
 
-            if (shouldWait(time)) {
-                logState(String.format("switch_to[%s->%s]->queue.await(%s)", Identification.uid(), wid, time));
-                mutex.release();
-                queue.await(time, wid);
+            // Past the bound, a switcher from outside the crew's workplaces neither takes a reserved one
+            // nor joins its wait: it waits behind the crew, unless that already closes a cycle.
+            Requests.Edge deferral = null;
+            if (isOverdue(workplace, time) && !workplace.getReservation().getWorkplaces().contains(current.getId())) {
+                deferral = requests.add(uid, wid, access, true);
+                if (requests.getCycle(deferral) != null) {
+                    requests.remove(deferral);
+                    deferral = null;
+                }
             }
-            if (!workplace.isAwaited() && workplace.isEmpty()) {
-                logState(String.format("switch_to[%s->%s]->free->occupying", Identification.uid(), wid));
 
-                workplace.occupy();
-                current.leave();
-                workplaces.updateMapping(workplace);
-                workplaces.updateMapping(current);
+            // a switching worker holds a workplace, so it does not wait in the queue: the queue
+            // is only woken by leaving workers, and they may all be waiting for that workplace
+            if (deferral == null && !workplace.isAwaited() && workplace.hasRoom(access)) {
+                logState(String.format("switch_to[%s->%s]->free->occupying", uid, wid));
+
+                current.leave(uid);
+                recordVacate(uid, current);
+                workplace.occupy(uid, access);
+                recordOccupy(uid, workplace, access);
+                workplaces.updateMapping(uid, workplace);
+                renewLease(uid);
+                events.publish(WorkshopEvent.switchTo(time, uid, current.getId(), wid));
 
-                if (current.isAwaited()) {
-                    logState(String.format("switch_to[%s->%s]->free->signal", Identification.uid(), wid));
+                if (current.canSignal()) {
+                    logState(String.format("switch_to[%s->%s]->free->signal", uid, wid));
                     current.signal();
                 } else {
-                    mutex.release();
+                    admitCrews();
+                    passOn();
                 }
 
+                metrics.recordWait(System.nanoTime() - start);
                 return workplace;
             }
 
-            var e = requests.add(current.getId(), wid);
-            var cycle = requests.getCycle(e);
-            CountDownLatch doneLatch = null;
+            // An exclusive request on a shared workplace waits for all of its holders, which no rotation can
+            // bring about, so holding on to our workplace meanwhile could deadlock. Giving it up silently would
+            // break what switchTo promises, so the worker has to leave and enter the workplace itself.
+            if (access == Access.Exclusive && workplace.isShared()) {
+                if (deferral != null) {
+                    requests.remove(deferral);
+                }
+                mutex.release();
+                throw new IllegalStateException("exclusive switchTo onto an occupied shared workplace, leave and enter it instead");
+            }
+
+            // switching to where we already are closes a cycle of one, which takes us out and back in
+            var e = deferral != null ? deferral : requests.add(uid, wid, access);
+            var cycle = deferral != null ? null : requests.getCycle(e);
+            boolean promoted = false;
+            while (cycle != null && promoteDeferred(cycle)) {
+                promoted = true;
+                cycle = requests.getCycle(e);
+            }
+
+            if (cycle != null && abortHoldings(cycle)) {
+                logState(String.format("switch_to[%s->%s]->occupied->cycle->holding aborted", uid, wid));
+                cycle = null;
+            }
 
             if (cycle != null) {
+                var targets = new LinkedHashSet<WorkplaceId>();
+                for (var member : cycle) {
+                    targets.add(requests.get(member).getTo());
+                }
                 StringBuilder b = new StringBuilder();
-                b.append(String.format("switch_to[%s->%s]->occupied->cycle", Identification.uid(), wid))
-                        .append(Arrays.toString(cycle.toArray()));
+                b.append(String.format("switch_to[%s->%s]->occupied->cycle", uid, wid))
+                        .append(cycle);
                 logState(b.toString());
+                events.publish(WorkshopEvent.cycle(time, uid, targets));
 
-                doneLatch = new CountDownLatch(cycle.size());
-                var latch = new CountDownLatch(cycle.size());
-                var useLatch = new CountDownLatch(cycle.size());
-                for (var p : cycle) {
-                    workplaces.get(p).giveLatch(latch, doneLatch, useLatch);
+                var handover = rotate(cycle, time);
+                if (promoted) {
+                    passOn();
+                } else {
+                    mutex.release();
                 }
-            } else {
-                logState(String.format("switch_to[%s->%s]->occupied->no cycle", Identification.uid(), wid));
-                workplace.await(mutex);
-            }
+                handover.countDown();
 
-            var cascades = current.hasLatch();
+                metrics.recordWait(System.nanoTime() - start);
+                return workplace;
+            }
 
-            logState(String.format("switch_to[%s->%s]->occupied->occupying[cas:%s]", Identification.uid(), wid, cascades));
-            if (!cascades) {
-                current.leave();
-                workplaces.updateMapping(current);
+            logState(String.format("switch_to[%s->%s]->occupied->no cycle%s", uid, wid, deferral != null ? "->deferred" : ""));
+            suspendLease(uid);
+            var waiting = new Switching();
+            switching.put(uid, waiting);
+            if (deferral != null) {
+                workplace.awaitDeferred(mutex, waiting.delay, access);
+            } else {
+                awaitWorkplace(workplace, waiting.delay, access, promoted);
+            }
+            if (waiting.handover != null) {
+                // moved by whoever closed our cycle, which did all the bookkeeping and kept the mutex
+                waiting.handover.countDown();
+                metrics.recordWait(System.nanoTime() - start);
+                return workplace;
             }
-            workplace.occupy();
-            workplaces.updateMapping(workplace);
+            switching.remove(uid);
+
+            logState(String.format("switch_to[%s->%s]->occupied->occupying", uid, wid));
+            current.leave(uid);
+            recordVacate(uid, current);
+            workplace.occupy(uid, access);
+            recordOccupy(uid, workplace, access);
+            workplaces.updateMapping(uid, workplace);
+            renewLease(uid);
+            events.publish(WorkshopEvent.switchTo(time, uid, current.getId(), wid));
 
             requests.remove(e);
-            if (current.isAwaited()) {
-                logState(String.format("switch_to[%s->%s]->occupied->signaling", Identification.uid(), wid));
+            if (current.canSignal()) {
+                logState(String.format("switch_to[%s->%s]->occupied->signaling", uid, wid));
                 current.signal();
-            } else if (!cascades) {
-                mutex.release();
-            }
-
-            if (cascades) {
-                logState(String.format("switch_to[%s->%s]->occupied->cyclic->latching", Identification.uid(), wid));
-                current.bumpDoneLatch();
-                current.awaitLatch();
-                if (doneLatch != null) {
-                    current.awaitDoneLatch();
-                    mutex.release();
-                }
+            } else {
+                admitCrews();
+                passOn();
             }
 
+            metrics.recordWait(System.nanoTime() - start);
             return workplace;
         } catch (InterruptedException e) {
             ErrorHandling.panic();
@@ -272,31 +799,314 @@ public class OrderlyWorkshop implements Workshop {
 
     @Override
     public void leave() {
+        var uid = workerUid();
         try {
             mutex.acquire();
-            logState(String.format("leave[%s]->workplace", Identification.uid()));
-            var workplace = workplaces.getThroughUser(Identification.uid());
-            assert workplace != null;
-
-            workplace.leave();
-            workplaces.updateMapping(workplace);
-            if (workplace.isAwaited()) {
-                logState(String.format("leave[%s:%s]->workplace", Identification.uid(), workplace.getId()));
-                workplace.signal();
+            if (workplaces.getThroughUser(uid) == null && !holdings.containsKey(uid)) {
+                mutex.release();
+                throw new IllegalStateException("leave outside the workshop, or after the lease expired");
+            }
+            releaseLease(uid);
+            leave(uid);
+        } catch (InterruptedException e) {
+            ErrorHandling.panic();
+        }
+    }
+
+    // Called with the mutex held, which is passed on or released.
+    private void leave(long uid) throws InterruptedException {
+        logState(String.format("leave[%s]->workplace", uid));
+        var holding = holdings.remove(uid);
+        if (holding != null) {
+            var last = holding.held.pollLast();
+            for (var wid : new ArrayList<>(holding.held)) {
+                releaseOne(uid, workplaces.get(wid));
+            }
+            workplaces.updateMapping(uid, workplaces.get(last));
+        }
+        var workplace = workplaces.getThroughUser(uid);
+
+        workplace.leave(uid);
+        recordVacate(uid, workplace);
+        workplaces.removeMapping(uid);
+        events.publish(WorkshopEvent.leave(currentTime, uid, workplace.getId()));
+        if (workplace.canSignal()) {
+            logState(String.format("leave[%s:%s]->workplace", uid, workplace.getId()));
+            workplace.signal();
+        } else {
+            admitCrews();
+            if (signalVacancy()) {
+                logState(String.format("leave[%s:%s]->vacancy", uid, workplace.getId()));
             } else if (!queue.isEmpty()) {
-                logState(String.format("leave[%s:%s]->queue", Identification.uid(), workplace.getId()));
+                logState(String.format("leave[%s:%s]->queue", uid, workplace.getId()));
+                queue.signal();
+            } else {
+                logState(String.format("leave[%s:%s]->mutex.V", uid, workplace.getId()));
+                mutex.release();
+            }
+        }
+    }
+
+    // Grows the set of workplaces held by the calling worker. Workplaces are taken
+    // in WorkplaceId order; if waiting would close a cycle in requests, or a
+    // switching worker closes one through us, we give everything back and start over.
+    public List<Workplace> acquire(Collection<WorkplaceId> wids) {
+        if (wids.isEmpty()) {
+            return List.of();
+        }
+
+        var uid = workerUid();
+        try {
+            mutex.acquire();
+            var time = currentTime++;
+            suspendLease(uid);
+            var holding = holdings.get(uid);
+            if (holding == null) {
+                holding = new Holding();
+                var current = workplaces.getThroughUser(uid);
+                if (current != null) {
+                    holding.held.add(current.getId());
+                }
+            }
+
+            // only empty-handed workers queue up: the queue is woken by leaving workers, which we might block
+            if (holding.held.isEmpty() && shouldWait(time)) {
+                logState(String.format("acquire[%s->%s]->queue.await(%s)", uid, wids, time));
+                recordQueue(uid, wids.iterator().next());
+                queue.await(time, wids.iterator().next(), mutex);
+            }
+
+            holdings.put(uid, holding);
+            var target = new TreeSet<>(holding.held);
+            target.addAll(wids);
+
+            while (!acquireInOrder(holding, target, time)) {
+                logState(String.format("acquire[%s->%s]->backed off", uid, wids));
+                // let the workers we backed off for go first, the mutex is fair
+                mutex.release();
+                mutex.acquire();
+            }
+
+            if (holding.held.size() == 1) {
+                holdings.remove(uid);
+            }
+            renewLease(uid);
+            logState(String.format("acquire[%s->%s]->holding %s", uid, wids, holding.held));
+            passOn();
+
+            var result = new ArrayList<Workplace>(wids.size());
+            for (var wid : wids) {
+                result.add(workplaces.get(wid));
+            }
+            return result;
+        } catch (InterruptedException e) {
+            ErrorHandling.panic();
+        }
+
+        return null;
+    }
+
+    // Shrinks the set of workplaces held by the calling worker; releasing all of them leaves the workshop.
+    public void release(Collection<WorkplaceId> wids) {
+        var uid = workerUid();
+        try {
+            mutex.acquire();
+            var holding = holdings.get(uid);
+            if (holding == null) {
+                var current = workplaces.getThroughUser(uid);
+                mutex.release();
+                if (current != null && wids.contains(current.getId())) {
+                    leave();
+                }
+                return;
+            }
+
+            var released = new TreeSet<>(holding.held);
+            released.retainAll(wids);
+            if (released.size() == holding.held.size()) {
+                mutex.release();
+                leave();
+                return;
+            }
+
+            for (var wid : released) {
+                releaseOne(uid, workplaces.get(wid));
+            }
+            if (holding.held.size() == 1) {
+                holdings.remove(uid);
+                workplaces.updateMapping(uid, workplaces.get(holding.held.first()));
+            }
+
+            logState(String.format("release[%s->%s]->holding %s", uid, released, holding.held));
+            if (signalVacancy()) {
+                return;
+            }
+            if (!queue.isEmpty()) {
                 queue.signal();
             } else {
-                logState(String.format("leave[%s:%s]->mutex.V", Identification.uid(), workplace.getId()));
                 mutex.release();
             }
         } catch (InterruptedException e) {
             ErrorHandling.panic();
         }
     }
+
+    // Returns false if the worker had to back off, in which case it holds nothing.
+    private boolean acquireInOrder(Holding holding, TreeSet<WorkplaceId> target, long time) throws InterruptedException {
+        var uid = Identification.uid();
+
+        for (var wid : target) {
+            if (holding.held.contains(wid)) {
+                continue;
+            }
+            var workplace = workplaces.get(wid);
+
+            if (holding.held.isEmpty()) {
+                admitCrews();
+            }
+            while (holding.held.isEmpty() && workplace.isReserved()) {
+                var crew = workplace.getReservation();
+                passOn();
+                crew.awaitAdmission();
+                mutex.acquire();
+                admitCrews();
+            }
+
+            if (workplace.isAwaited() || !workplace.hasRoom(Access.Shared)) {
+                // one edge stands for all the workplaces we hold
+                var e = requests.add(uid, wid, Access.Shared);
+                boolean backOff = requests.getCycle(e) != null;
+
+                if (!backOff) {
+                    logState(String.format("acquire[%s->%s]->workplace.await(%s)", uid, wid, time));
+                    holding.awaited = workplace;
+                    awaitWorkplace(workplace, holding.delay, Access.Shared);
+                    if (holding.aborted) {
+                        // called off by abort, which already took back our edge: the critical section was not passed to us
+                        mutex.acquire();
+                        holding.aborted = false;
+                        backOff = true;
+                    } else {
+                        holding.awaited = null;
+                    }
+                }
+
+                requests.remove(e);
+
+                if (backOff) {
+                    for (var held : new ArrayList<>(holding.held)) {
+                        releaseOne(uid, workplaces.get(held));
+                    }
+                    return false;
+                }
+            }
+
+            workplace.occupy(uid);
+            recordOccupy(uid, workplace, Access.Shared);
+            workplaces.updateMapping(uid, workplace);
+            holding.held.add(wid);
+            events.publish(WorkshopEvent.enter(time, uid, wid));
+        }
+
+        return true;
+    }
+
+    // Called with the mutex held; keeps holding it on return.
+    private void releaseOne(long uid, OrderlyWorkplace workplace) throws InterruptedException {
+        var holding = holdings.get(uid);
+        if (holding != null) {
+            holding.held.remove(workplace.getId());
+        }
+
+        workplace.leave(uid);
+        recordVacate(uid, workplace);
+        events.publish(WorkshopEvent.leave(currentTime, uid, workplace.getId()));
+        if (workplace.canSignal()) {
+            workplace.signal();
+            mutex.acquire();
+        } else if (queue.isAwaited(workplace.getId())) {
+            queue.signal(workplace.getId());
+            mutex.acquire();
+        } else {
+            admitCrews();
+        }
+    }
+
+    // Commits a whole cycle at once: every member gets its target, then the waiting members are woken
+    // without passing them the critical section. The mutex covers only this bookkeeping, not the members
+    // getting out of switchTo, so disjoint cycles and other traffic are not held up by the rotation.
+    // The returned latch is counted down by every member, the caller included, once it is on its way out.
+    private CountDownLatch rotate(List<Long> cycle, long time) throws InterruptedException {
+        var handover = new CountDownLatch(cycle.size());
+        // everybody moves out first: members may share the workplace they come from
+        var froms = new ArrayList<OrderlyWorkplace>(cycle.size());
+        for (var member : cycle) {
+            var from = workplaces.getThroughUser(member);
+            from.leave(member);
+            recordVacate(member, from);
+            froms.add(from);
+        }
+
+        for (int i = 0; i < cycle.size(); i++) {
+            var member = cycle.get(i);
+            var e = requests.get(member);
+            var workplace = workplaces.get(e.getTo());
+            workplace.occupy(member, e.getAccess(), handover);
+            recordOccupy(member, workplace, e.getAccess());
+            workplaces.updateMapping(member, workplace);
+            renewLease(member);
+            requests.remove(e);
+            events.publish(WorkshopEvent.switchTo(time, member, froms.get(i).getId(), e.getTo()));
+
+            // the caller is the only member not waiting
+            var waiting = switching.remove(member);
+            if (waiting != null) {
+                waiting.handover = handover;
+                var cancelled = workplace.cancel(waiting.delay);
+                assert cancelled;
+            }
+        }
+
+        return handover;
+    }
+
+    // A worker acquiring several workplaces never rotates in a cycle: it is told to back off instead.
+    private boolean abortHoldings(List<Long> cycle) {
+        boolean aborted = false;
+        for (var member : cycle) {
+            var holding = holdings.get(member);
+            aborted = holding != null && abort(member, holding) || aborted;
+        }
+
+        return aborted;
+    }
+
+    // Called with the mutex held. The holder wakes up without the critical section, so its wait is undone
+    // here and not once it gets the mutex back: until then no cycle may run through its edge, nor may
+    // anybody call it off a second time.
+    private boolean abort(long uid, Holding holding) {
+        if (holding.awaited == null || holding.aborted) {
+            return false;
+        }
+
+        // set before waking it up, it checks the flag as soon as it runs
+        holding.aborted = true;
+        if (!holding.awaited.cancel(holding.delay)) {
+            holding.aborted = false;
+            return false;
+        }
+
+        holding.awaited = null;
+        var e = requests.get(uid);
+        if (e != null) {
+            requests.remove(e);
+        }
+        return true;
+    }
 }
 
 
+
 /*
 switch(wid):
     mutex.P()
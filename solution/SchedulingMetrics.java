@@ -0,0 +1,86 @@
+package cp2022.solution;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class SchedulingMetrics {
+    private final long started = System.nanoTime();
+    private final int workplaces;
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder uses = new LongAdder();
+    private final LongAdder useNanos = new LongAdder();
+    private final LongAdder queueSignals = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+    private final LongAdder revoked = new LongAdder();
+
+    public SchedulingMetrics(int workplaces) {
+        this.workplaces = workplaces;
+    }
+
+    // time from calling enter/switchTo to holding the workplace
+    public void recordWait(long nanos) {
+        waits.increment();
+        waitNanos.add(nanos);
+    }
+
+    public void recordUse(long nanos) {
+        uses.increment();
+        useNanos.add(nanos);
+    }
+
+    // reordered: whether the queue let someone other than its oldest item go first
+    public void recordQueueSignal(boolean reordered) {
+        queueSignals.increment();
+        if (reordered) {
+            this.reordered.increment();
+        }
+    }
+
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public double getMeanWaitMillis() {
+        long n = waits.sum();
+        return n == 0 ? 0 : waitNanos.sum() / 1e6 / n;
+    }
+
+    public long getUses() {
+        return uses.sum();
+    }
+
+    public double getMeanUseMillis() {
+        long n = uses.sum();
+        return n == 0 ? 0 : useNanos.sum() / 1e6 / n;
+    }
+
+    // share of the workplaces' time spent in use() since the workshop was created
+    public double getUtilization() {
+        long elapsed = System.nanoTime() - started;
+        return elapsed == 0 || workplaces == 0 ? 0 : (double) useNanos.sum() / elapsed / workplaces;
+    }
+
+    // a lease ran out and the workshop took the worker's workplaces back
+    public void recordRevocation() {
+        revoked.increment();
+    }
+
+    public long getQueueSignals() {
+        return queueSignals.sum();
+    }
+
+    public long getReordered() {
+        return reordered.sum();
+    }
+
+    public long getRevoked() {
+        return revoked.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(waits: %d, mean wait: %.3f ms, uses: %d, mean use: %.3f ms, utilization: %.3f, queue signals: %d, reordered: %d, revoked: %d)",
+                getWaits(), getMeanWaitMillis(), getUses(), getMeanUseMillis(), getUtilization(), getQueueSignals(), getReordered(), getRevoked());
+    }
+}
@@ -8,6 +8,12 @@ import java.util.PriorityQueue;
 import java.util.concurrent.Semaphore;
 
 public class SemaphoreQueue {
+    // ShortestExpectedUse lets through, among the items no more than `window` younger than
+    // the oldest one, the one expected to be done with its workplace first
+    public enum Policy {
+        TimeOrder, ShortestExpectedUse
+    }
+
     public static class SemaphoreQueueItem {
         private final Semaphore delay = new Semaphore(0);
         private long time = 0;
@@ -42,9 +48,33 @@ public class SemaphoreQueue {
     }
 
     private final PriorityQueue<SemaphoreQueueItem> queue;
+    private final Policy policy;
+    // null under TimeOrder
+    private final UseEstimates estimates;
+    private final SchedulingMetrics metrics;
+    private final long window;
+    private boolean logging = true;
+    // how many times the oldest item has been passed over
+    private long skipped = 0;
 
     public SemaphoreQueue(int initialSize) {
+        this(initialSize, Policy.TimeOrder, null, null, 0);
+    }
+
+    public SemaphoreQueue(int initialSize, Policy policy, UseEstimates estimates, SchedulingMetrics metrics, long window) {
         queue = new PriorityQueue<>(initialSize, new SemaphoreQueueItem.SemaphoreQueueItemComparator());
+        this.policy = policy;
+        this.estimates = estimates;
+        this.metrics = metrics;
+        this.window = window;
+    }
+
+    public void setLogging(boolean logging) {
+        this.logging = logging;
+    }
+
+    public Policy getPolicy() {
+        return policy;
     }
 
     public int size() {
@@ -66,10 +96,12 @@ public class SemaphoreQueue {
         return queue.peek().time;
     }
 
-    public void await(long currentTime, WorkplaceId wid) throws InterruptedException {
+    // the item is added before the foreign mutex is released: the queue is only ever changed under it
+    public void await(long currentTime, WorkplaceId wid, Semaphore foreignMutex) throws InterruptedException {
         var item = new SemaphoreQueueItem(currentTime, wid);
         queue.add(item);
 
+        foreignMutex.release();
         item.await();
     }
 
@@ -83,15 +115,66 @@ public class SemaphoreQueue {
         return false;
     }
 
+    // the workplace of the item signal() would wake
+    public WorkplaceId peekWorkplace() {
+        assert queue.peek() != null;
+        return next().wid;
+    }
+
+    // wakes the oldest item waiting for wid, out of the time order
+    public void signal(WorkplaceId wid) {
+        SemaphoreQueueItem oldest = null;
+        for (var item : queue) {
+            if (item.wid == wid && (oldest == null || item.time < oldest.time)) {
+                oldest = item;
+            }
+        }
+
+        if (oldest != null) {
+            queue.remove(oldest);
+            oldest.signal();
+        }
+    }
+
+    private SemaphoreQueueItem next() {
+        var oldest = queue.peek();
+        if (policy == Policy.TimeOrder || skipped >= window) {
+            return oldest;
+        }
+
+        var best = oldest;
+        var bestEstimate = estimates.estimate(oldest.uid, oldest.wid);
+        for (var item : queue) {
+            if (item.time - oldest.time >= window) {
+                continue;
+            }
+            var estimate = estimates.estimate(item.uid, item.wid);
+            if (estimate < bestEstimate || estimate == bestEstimate && item.time < best.time) {
+                best = item;
+                bestEstimate = estimate;
+            }
+        }
+
+        return best;
+    }
+
     public void signal() {
         if (queue.isEmpty()) {
             return;
         }
-        var item = queue.poll();
-        StringBuilder b = new StringBuilder();
-        b.append(String.format("[Queue] signaling uid %s, t: %s\ntimes: ", Thread.currentThread().getId(), item.time));
-        logTimes(b);
-        System.out.println(b);
+        var item = next();
+        var reordered = item != queue.peek();
+        skipped = reordered ? skipped + 1 : 0;
+        queue.remove(item);
+        if (metrics != null) {
+            metrics.recordQueueSignal(reordered);
+        }
+        if (logging) {
+            StringBuilder b = new StringBuilder();
+            b.append(String.format("[Queue] signaling uid %s, t: %s\ntimes: ", Thread.currentThread().getId(), item.time));
+            logTimes(b);
+            System.out.println(b);
+        }
 
         item.signal();
     }
@@ -0,0 +1,74 @@
+package cp2022.solution;
+
+import cp2022.base.WorkplaceId;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Running estimates of how long use() takes, as exponentially weighted moving
+ * averages (alpha = 1/8) in nanoseconds. A worker's own history at a workplace
+ * (its route) takes precedence over the workplace's average. Routes of workers
+ * that have gone quiet are aged out: once there are more than 2 * MAX_ROUTES of
+ * them, those not used within the last MAX_ROUTES records are dropped, which
+ * leaves at most MAX_ROUTES. Only kept with the ShortestExpectedUse policy.
+ */
+public class UseEstimates {
+    private record Route(long uid, WorkplaceId wid) {
+    }
+
+    // the average and the record it was last updated by
+    private record Average(long nanos, long recorded) {
+    }
+
+    public static final int MAX_ROUTES = 1 << 14;
+    private static final int SHIFT = 3;
+
+    private final ConcurrentHashMap<WorkplaceId, Long> workplaces = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Route, Average> routes = new ConcurrentHashMap<>();
+    private final AtomicLong records = new AtomicLong(0);
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+    private volatile long overall = 0;
+
+    private static long update(Long estimate, Long sample) {
+        return estimate + ((sample - estimate) >> SHIFT);
+    }
+
+    public void record(long uid, WorkplaceId wid, long nanos) {
+        var recorded = records.incrementAndGet();
+        workplaces.merge(wid, nanos, UseEstimates::update);
+        routes.merge(new Route(uid, wid), new Average(nanos, recorded),
+                (average, sample) -> new Average(update(average.nanos(), sample.nanos()), sample.recorded()));
+        overall = overall == 0 ? nanos : update(overall, nanos);
+        if (routes.size() > 2 * MAX_ROUTES) {
+            age(recorded);
+        }
+    }
+
+    // one sweep at a time, the others go on recording
+    private void age(long recorded) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        routes.values().removeIf(average -> recorded - average.recorded() > MAX_ROUTES);
+        sweeping.set(false);
+    }
+
+    public long estimate(long uid, WorkplaceId wid) {
+        var route = routes.get(new Route(uid, wid));
+        if (route != null) {
+            return route.nanos();
+        }
+
+        return workplaces.getOrDefault(wid, overall);
+    }
+
+    public long estimate(WorkplaceId wid) {
+        return workplaces.getOrDefault(wid, overall);
+    }
+
+    public int getRoutes() {
+        return routes.size();
+    }
+}
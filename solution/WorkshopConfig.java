@@ -0,0 +1,181 @@
+package cp2022.solution;
+
+/*
+ * Which engine WorkshopFactory builds and how it is tuned. Every knob can also be
+ * set with a system property, see fromSystemProperties().
+ */
+public class WorkshopConfig {
+    public static final String AUTO = "auto";
+
+    private String engine = AUTO;
+    private SemaphoreQueue.Policy scheduling = SemaphoreQueue.Policy.TimeOrder;
+    private boolean logging = true;
+    private WorkshopEventPublisher events = null;
+    // auto mode only picks a specialised engine from this many workplaces and cores on
+    private int autoMinWorkplaces = 64;
+    private int autoMinCores = 4;
+    // most commands the dispatcher engine applies before unparking the granted workers
+    private int dispatcherBatch = DispatcherWorkshop.DEFAULT_BATCH;
+    // a line per dispatcher batch, too many to come with logging
+    private boolean dispatcherTrace = false;
+    // how long a worker keeps its workplace without renewing or using it, 0 for no leases
+    private long leaseMillis = 0;
+    // granularity of lease expiry
+    private long leaseTickMillis = 10;
+    // directory of the occupancy journal, null for none
+    private String journalDirectory = null;
+    // journal records between snapshots
+    private int journalRecords = 1 << 16;
+
+    // -Dcp2022.engine, -Dcp2022.scheduling, -Dcp2022.log, -Dcp2022.auto.workplaces, -Dcp2022.auto.cores,
+    // -Dcp2022.dispatcher.batch, -Dcp2022.dispatcher.trace, -Dcp2022.lease.ms, -Dcp2022.lease.tick.ms,
+    // -Dcp2022.journal.dir, -Dcp2022.journal.records
+    // Every property goes through its setter, so a bad value fails here rather than in the engine.
+    public static WorkshopConfig fromSystemProperties() {
+        var config = new WorkshopConfig();
+        config.setEngine(System.getProperty("cp2022.engine", config.engine));
+        config.setScheduling(SemaphoreQueue.Policy.valueOf(System.getProperty("cp2022.scheduling", config.scheduling.name())));
+        config.setLogging(Boolean.parseBoolean(System.getProperty("cp2022.log", Boolean.toString(config.logging))));
+        config.setAutoMinWorkplaces(Integer.getInteger("cp2022.auto.workplaces", config.autoMinWorkplaces));
+        config.setAutoMinCores(Integer.getInteger("cp2022.auto.cores", config.autoMinCores));
+        config.setDispatcherBatch(Integer.getInteger("cp2022.dispatcher.batch", config.dispatcherBatch));
+        config.setDispatcherTrace(Boolean.parseBoolean(System.getProperty("cp2022.dispatcher.trace", Boolean.toString(config.dispatcherTrace))));
+        config.setLeaseMillis(Long.getLong("cp2022.lease.ms", config.leaseMillis));
+        config.setLeaseTickMillis(Long.getLong("cp2022.lease.tick.ms", config.leaseTickMillis));
+        config.setJournalDirectory(System.getProperty("cp2022.journal.dir", config.journalDirectory));
+        config.setJournalRecords(Integer.getInteger("cp2022.journal.records", config.journalRecords));
+        return config;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public WorkshopConfig setEngine(String engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public SemaphoreQueue.Policy getScheduling() {
+        return scheduling;
+    }
+
+    public WorkshopConfig setScheduling(SemaphoreQueue.Policy scheduling) {
+        this.scheduling = scheduling;
+        return this;
+    }
+
+    public boolean isLogging() {
+        return logging;
+    }
+
+    public WorkshopConfig setLogging(boolean logging) {
+        this.logging = logging;
+        return this;
+    }
+
+    // null means every workshop gets a publisher of its own
+    public WorkshopEventPublisher getEvents() {
+        return events;
+    }
+
+    public WorkshopConfig setEvents(WorkshopEventPublisher events) {
+        this.events = events;
+        return this;
+    }
+
+    public int getAutoMinWorkplaces() {
+        return autoMinWorkplaces;
+    }
+
+    public WorkshopConfig setAutoMinWorkplaces(int autoMinWorkplaces) {
+        this.autoMinWorkplaces = autoMinWorkplaces;
+        return this;
+    }
+
+    public int getAutoMinCores() {
+        return autoMinCores;
+    }
+
+    public WorkshopConfig setAutoMinCores(int autoMinCores) {
+        this.autoMinCores = autoMinCores;
+        return this;
+    }
+
+    public int getDispatcherBatch() {
+        return dispatcherBatch;
+    }
+
+    public WorkshopConfig setDispatcherBatch(int dispatcherBatch) {
+        if (dispatcherBatch < 1) {
+            throw new IllegalArgumentException("dispatcher batch must be positive");
+        }
+        this.dispatcherBatch = dispatcherBatch;
+        return this;
+    }
+
+    public boolean isDispatcherTrace() {
+        return dispatcherTrace;
+    }
+
+    public WorkshopConfig setDispatcherTrace(boolean dispatcherTrace) {
+        this.dispatcherTrace = dispatcherTrace;
+        return this;
+    }
+
+    public boolean hasLeases() {
+        return leaseMillis > 0;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    public WorkshopConfig setLeaseMillis(long leaseMillis) {
+        if (leaseMillis < 0) {
+            throw new IllegalArgumentException("lease duration must not be negative");
+        }
+        this.leaseMillis = leaseMillis;
+        return this;
+    }
+
+    public long getLeaseTickMillis() {
+        return leaseTickMillis;
+    }
+
+    public WorkshopConfig setLeaseTickMillis(long leaseTickMillis) {
+        if (leaseTickMillis < 1) {
+            throw new IllegalArgumentException("lease tick must be positive");
+        }
+        this.leaseTickMillis = leaseTickMillis;
+        return this;
+    }
+
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    // a workshop created with the journal of an earlier one takes over its occupancy
+    public WorkshopConfig setJournalDirectory(String journalDirectory) {
+        this.journalDirectory = journalDirectory;
+        return this;
+    }
+
+    public int getJournalRecords() {
+        return journalRecords;
+    }
+
+    public WorkshopConfig setJournalRecords(int journalRecords) {
+        if (journalRecords < 1) {
+            throw new IllegalArgumentException("journal must hold at least one record");
+        }
+        this.journalRecords = journalRecords;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(engine: %s, scheduling: %s, logging: %s, auto: %s workplaces, %s cores, dispatcher batch: %s, trace: %s, lease: %s ms, tick: %s ms, journal: %s)",
+                engine, scheduling, logging, autoMinWorkplaces, autoMinCores, dispatcherBatch, dispatcherTrace, leaseMillis, leaseTickMillis, journalDirectory);
+    }
+}
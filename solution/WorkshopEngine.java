@@ -0,0 +1,15 @@
+package cp2022.solution;
+
+import java.util.Collection;
+
+import cp2022.base.Workplace;
+import cp2022.base.Workshop;
+
+public interface WorkshopEngine {
+
+    public Workshop create(Collection<Workplace> workplaces, WorkshopConfig config);
+
+    // whether auto mode may pick this engine for the given workplaces, available cores and config
+    public boolean suits(Collection<Workplace> workplaces, int cores, WorkshopConfig config);
+
+}
@@ -0,0 +1,92 @@
+package cp2022.solution;
+
+import cp2022.base.WorkplaceId;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class WorkshopEvent {
+    public enum Kind {
+        Enter, Switch, Leave, Cycle
+    }
+
+    private final Kind kind;
+    private final long time;
+    private final long uid;
+    private final WorkplaceId from;
+    private final WorkplaceId to;
+    private final Set<WorkplaceId> cycle;
+
+    private WorkshopEvent(Kind kind, long time, long uid, WorkplaceId from, WorkplaceId to, Set<WorkplaceId> cycle) {
+        this.kind = kind;
+        this.time = time;
+        this.uid = uid;
+        this.from = from;
+        this.to = to;
+        this.cycle = cycle;
+    }
+
+    public static WorkshopEvent enter(long time, long uid, WorkplaceId to) {
+        return new WorkshopEvent(Kind.Enter, time, uid, null, to, Collections.emptySet());
+    }
+
+    public static WorkshopEvent switchTo(long time, long uid, WorkplaceId from, WorkplaceId to) {
+        return new WorkshopEvent(Kind.Switch, time, uid, from, to, Collections.emptySet());
+    }
+
+    public static WorkshopEvent leave(long time, long uid, WorkplaceId from) {
+        return new WorkshopEvent(Kind.Leave, time, uid, from, null, Collections.emptySet());
+    }
+
+    public static WorkshopEvent cycle(long time, long uid, Set<WorkplaceId> cycle) {
+        return new WorkshopEvent(Kind.Cycle, time, uid, null, null, Set.copyOf(cycle));
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    // the workplace that got freed (Switch, Leave)
+    public WorkplaceId getFrom() {
+        return from;
+    }
+
+    // the workplace that got occupied (Enter, Switch)
+    public WorkplaceId getTo() {
+        return to;
+    }
+
+    public Set<WorkplaceId> getCycle() {
+        return cycle;
+    }
+
+    // the workplaces whose occupancy this event describes, used for conflation; a Switch describes
+    // both, so a later event on its target does not hide that its source got freed
+    public List<Object> getKeys() {
+        return switch (kind) {
+            case Enter -> List.of(to);
+            case Switch -> List.of(from, to);
+            case Leave -> List.of(from);
+            case Cycle -> List.of(cycle);
+        };
+    }
+
+    @Override
+    public String toString() {
+        return switch (kind) {
+            case Enter -> String.format("(t: %s, enter u: %s -> %s)", time, uid, to);
+            case Switch -> String.format("(t: %s, switch u: %s, %s -> %s)", time, uid, from, to);
+            case Leave -> String.format("(t: %s, leave u: %s <- %s)", time, uid, from);
+            case Cycle -> String.format("(t: %s, cycle u: %s, %s)", time, uid, cycle);
+        };
+    }
+}
@@ -0,0 +1,389 @@
+package cp2022.solution;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Workers only push events onto `pending` (a lock-free queue) and, if nobody
+ * is draining it yet, schedule the dispatcher on `executor`. The dispatcher
+ * moves events into the bounded per-subscriber buffers. It never waits and
+ * never calls a subscriber, so it stalls neither the workshop nor the other
+ * subscribers. Each subscription delivers from its buffer on a thread of its
+ * own, so a slow subscriber only falls behind in its own buffer.
+ *
+ * A Block subscription's thread also moves events from the subscription's
+ * backlog into its buffer, and waits while the buffer is full.
+ * The backlog holds up to BACKLOG events. A Block subscriber that falls further
+ * behind is cut off with onError, so it pays for its own lag. `pending` holds up
+ * to BACKLOG events too. Past that the workshop has outrun the dispatcher, and
+ * new events are dropped for everyone and counted in getDropped(); the workshop
+ * never waits for its subscribers.
+ */
+public class WorkshopEventPublisher implements Flow.Publisher<WorkshopEvent> {
+    public enum Backpressure {
+        DropOldest, ConflatePerWorkplace, Block
+    }
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int BACKLOG = 1 << 16;
+    // how often an idle Block thread checks whether its subscription has ended
+    private static final long FEED_POLL_MS = 100;
+
+    private final ConcurrentLinkedQueue<WorkshopEvent> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingSize = new AtomicInteger(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicInteger wip = new AtomicInteger(0);
+    private final CopyOnWriteArrayList<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Executor executor;
+
+    public WorkshopEventPublisher() {
+        this(Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "workshop-events");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public WorkshopEventPublisher(Executor executor) {
+        this.executor = executor;
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    public void publish(WorkshopEvent event) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+
+        if (pendingSize.incrementAndGet() > BACKLOG) {
+            pendingSize.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        pending.offer(event);
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this::dispatch);
+        }
+    }
+
+    private void dispatch() {
+        int missed = 1;
+        do {
+            WorkshopEvent event;
+            while ((event = pending.poll()) != null) {
+                pendingSize.decrementAndGet();
+                for (var subscription : subscriptions) {
+                    subscription.offer(event);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super WorkshopEvent> subscriber) {
+        subscribe(subscriber, DEFAULT_CAPACITY, Backpressure.DropOldest);
+    }
+
+    public void subscribe(Flow.Subscriber<? super WorkshopEvent> subscriber, int capacity, Backpressure policy) {
+        Objects.requireNonNull(subscriber);
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        var subscription = new EventSubscription(subscriber, capacity, policy);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        if (policy == Backpressure.Block) {
+            var thread = new Thread(subscription::feed, "workshop-events-block");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // events published while BACKLOG events were still waiting for the dispatcher
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void close() {
+        for (var subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    private class EventSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super WorkshopEvent> subscriber;
+        private final int capacity;
+        private final Backpressure policy;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        private final ArrayDeque<WorkshopEvent> buffer;
+        private final LinkedHashMap<Object, WorkshopEvent> conflated;
+        // Block only: events handed over by the dispatcher, not yet in the buffer
+        private final LinkedBlockingQueue<WorkshopEvent> backlog;
+        private final AtomicInteger backlogged = new AtomicInteger(0);
+        private volatile boolean overflowed = false;
+        // DropOldest and ConflatePerWorkplace only: the thread that calls the subscriber
+        private final ExecutorService delivery;
+
+        private final AtomicLong demand = new AtomicLong(0);
+        private final AtomicInteger wip = new AtomicInteger(0);
+        private volatile boolean cancelled = false;
+        private volatile boolean completed = false;
+        private long dropped = 0;
+
+        EventSubscription(Flow.Subscriber<? super WorkshopEvent> subscriber, int capacity, Backpressure policy) {
+            this.subscriber = subscriber;
+            this.capacity = capacity;
+            this.policy = policy;
+            this.buffer = policy == Backpressure.ConflatePerWorkplace ? null : new ArrayDeque<>(capacity);
+            this.conflated = policy == Backpressure.ConflatePerWorkplace ? new LinkedHashMap<>(capacity) : null;
+            this.backlog = policy == Backpressure.Block ? new LinkedBlockingQueue<>(BACKLOG) : null;
+            this.delivery = policy == Backpressure.Block ? null : Executors.newSingleThreadExecutor(r -> {
+                var thread = new Thread(r, "workshop-events-delivery");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        // Called by the dispatcher, never waits nor calls the subscriber.
+        void offer(WorkshopEvent event) {
+            if (cancelled || completed) {
+                return;
+            }
+            if (backlog != null) {
+                backlogged.incrementAndGet();
+                if (!backlog.offer(event)) {
+                    backlogged.decrementAndGet();
+                    // the Block thread cuts the subscriber off, even if it waits for room in the buffer
+                    overflowed = true;
+                    lock.lock();
+                    try {
+                        notFull.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                return;
+            }
+
+            lock.lock();
+            try {
+                switch (policy) {
+                    case DropOldest -> {
+                        if (buffer.size() == capacity) {
+                            buffer.poll();
+                            dropped++;
+                        }
+                        buffer.offer(event);
+                    }
+                    case ConflatePerWorkplace -> {
+                        var keys = event.getKeys();
+                        for (var key : keys) {
+                            var replaced = conflated.remove(key);
+                            // a Switch replaced under one workplace is still the latest for the other
+                            if (replaced != null && !isConflated(replaced)) {
+                                dropped++;
+                            }
+                        }
+                        while (!conflated.isEmpty() && conflated.size() + keys.size() > capacity) {
+                            unconflate(conflated.values().iterator().next());
+                            dropped++;
+                        }
+                        for (var key : keys) {
+                            conflated.put(key, event);
+                        }
+                    }
+                    case Block -> throw new IllegalStateException("Block events go through the backlog");
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            drain();
+        }
+
+        // The Block subscription's own thread: the only one that waits for this subscriber, and
+        // the one that delivers to it.
+        private void feed() {
+            try {
+                while (!cancelled) {
+                    var event = backlog.poll(FEED_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (event == null) {
+                        if (completed || overflowed) {
+                            drain();
+                        }
+                        continue;
+                    }
+
+                    lock.lock();
+                    try {
+                        while (buffer.size() == capacity && !cancelled && !overflowed) {
+                            notFull.await();
+                        }
+                        // once overflowed the subscriber is cut off, the event goes nowhere
+                        if (!overflowed) {
+                            buffer.offer(event);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    backlogged.decrementAndGet();
+                    drain();
+                }
+            } catch (InterruptedException e) {
+                ErrorHandling.panic();
+            }
+        }
+
+        private WorkshopEvent poll() {
+            lock.lock();
+            try {
+                WorkshopEvent event;
+                if (conflated != null) {
+                    var oldest = conflated.values().iterator();
+                    if (!oldest.hasNext()) {
+                        return null;
+                    }
+                    event = oldest.next();
+                    unconflate(event);
+                } else {
+                    event = buffer.poll();
+                }
+                notFull.signal();
+                return event;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Has the delivery thread catch up with the buffer, unless it is at it already. A Block
+        // subscription delivers right away, on its own thread or in the subscriber's request().
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            if (delivery == null) {
+                deliver();
+                return;
+            }
+
+            try {
+                delivery.execute(this::deliver);
+            } catch (RejectedExecutionException e) {
+                // the subscription has ended, nothing is delivered any more
+            }
+        }
+
+        private void deliver() {
+            int missed = 1;
+            do {
+                if (overflowed && !cancelled) {
+                    cancel();
+                    subscriber.onError(new IllegalStateException(String.format("Block subscriber fell more than %d events behind", BACKLOG)));
+                }
+                while (!cancelled && demand.get() > 0) {
+                    var event = poll();
+                    if (event == null) {
+                        break;
+                    }
+                    demand.decrementAndGet();
+                    subscriber.onNext(event);
+                }
+                if (completed && !cancelled && isBufferEmpty()) {
+                    cancelled = true;
+                    subscriptions.remove(this);
+                    subscriber.onComplete();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+            if (cancelled && delivery != null) {
+                delivery.shutdown();
+            }
+        }
+
+        // under the lock, whether the event is still kept under any of its workplaces
+        private boolean isConflated(WorkshopEvent event) {
+            for (var key : event.getKeys()) {
+                if (conflated.get(key) == event) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void unconflate(WorkshopEvent event) {
+            for (var key : event.getKeys()) {
+                conflated.remove(key, event);
+            }
+        }
+
+        private boolean isBufferEmpty() {
+            lock.lock();
+            try {
+                // an event the Block thread took from the backlog is counted until it is in the buffer
+                return conflated != null ? conflated.isEmpty() : buffer.isEmpty() && backlogged.get() == 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void complete() {
+            completed = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                return;
+            }
+
+            demand.getAndAccumulate(n, (current, add) -> {
+                long sum = current + add;
+                return sum < 0 ? Long.MAX_VALUE : sum;
+            });
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            if (delivery != null) {
+                delivery.shutdown();
+            }
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(policy: %s, capacity: %s, dropped: %s)", policy, capacity, dropped);
+        }
+    }
+}
@@ -7,45 +7,96 @@
  */
 package cp2022.solution;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import cp2022.base.Workplace;
 import cp2022.base.Workshop;
 
 
 public final class WorkshopFactory {
-    private final static class OrderlyWorkshop {
-        /*
-         * enter(id) ::
-         *  P(mutex)
-         *  if (ws.contains(id)) { // occupied
-         *   qs.get(id)[0] += 1
-         *   V(mutex)
-         *   P(qs.get(id)[1])
-         *  } // inheriting the section
-         *  ws.insert(id, thread_id)
-         *  sw.insert(thread_id, id)
-         *  V(mutex)
-         */
-
-        /*
-         * leave() ::
-         *  P(mutex)
-         *  id := sw.get(thread_id)
-         *  ws.remove(id)
-         *  sw.remove(thread_id)
-         *  q := qs.get(id)
-         *  if (q[0] > 0) { q[0] -= 1; V(q[1]) }
-         *  else { V(mutex) }
-         */
+    public static final String GLOBAL_LOCK = "global-lock";
+    public static final String DISPATCHER = "dispatcher";
+
+    // in registration order; auto mode prefers the engines registered last
+    private final static Map<String, WorkshopEngine> engines = new LinkedHashMap<>();
+
+    static {
+        register(GLOBAL_LOCK, new WorkshopEngine() {
+            @Override
+            public Workshop create(Collection<Workplace> workplaces, WorkshopConfig config) {
+                return new OrderlyWorkshop(workplaces, config);
+            }
+
+            @Override
+            public boolean suits(Collection<Workplace> workplaces, int cores, WorkshopConfig config) {
+                return true;
+            }
+        });
+        // pays for its extra thread only under heavy contention, and knows neither capacities,
+        // leases nor the journal
+        register(DISPATCHER, new WorkshopEngine() {
+            @Override
+            public Workshop create(Collection<Workplace> workplaces, WorkshopConfig config) {
+                return new DispatcherWorkshop(workplaces, config);
+            }
+
+            @Override
+            public boolean suits(Collection<Workplace> workplaces, int cores, WorkshopConfig config) {
+                return workplaces.size() >= config.getAutoMinWorkplaces() && cores >= config.getAutoMinCores()
+                        && DispatcherWorkshop.supports(workplaces, config);
+            }
+        });
+    }
+
+    public synchronized static void register(String name, WorkshopEngine engine) {
+        if (WorkshopConfig.AUTO.equals(name)) {
+            throw new IllegalArgumentException("\"auto\" is not a valid engine name");
+        }
+        engines.put(name, engine);
+    }
+
+    public synchronized static Collection<String> getEngines() {
+        return new ArrayList<>(engines.keySet());
+    }
+
+    public synchronized static String selectEngine(Collection<Workplace> workplaces, WorkshopConfig config) {
+        if (!WorkshopConfig.AUTO.equals(config.getEngine())) {
+            if (!engines.containsKey(config.getEngine())) {
+                throw new IllegalArgumentException(String.format("unknown engine %s, known: %s", config.getEngine(), engines.keySet()));
+            }
+            return config.getEngine();
+        }
+
+        var cores = Runtime.getRuntime().availableProcessors();
+        var names = new ArrayList<>(engines.keySet());
+        for (int i = names.size() - 1; i >= 0; i--) {
+            if (engines.get(names.get(i)).suits(workplaces, cores, config)) {
+                return names.get(i);
+            }
+        }
+
+        return GLOBAL_LOCK;
     }
 
     public final static Workshop newWorkshop(
             Collection<Workplace> workplaces
     ) {
-        // FIXME: implement
-        // throw new RuntimeException("not implemented");
-        return new cp2022.solution.OrderlyWorkshop(workplaces);
+        return newWorkshop(workplaces, WorkshopConfig.fromSystemProperties());
     }
-    
+
+    public final static Workshop newWorkshop(
+            Collection<Workplace> workplaces,
+            WorkshopConfig config
+    ) {
+        WorkshopEngine engine;
+        synchronized (WorkshopFactory.class) {
+            engine = engines.get(selectEngine(workplaces, config));
+        }
+
+        return engine.create(workplaces, config);
+    }
+
 }